@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhuapl.dorset.Application;
+import edu.jhuapl.dorset.Request;
+import edu.jhuapl.dorset.Response;
+
+/**
+ * Benchmarks Application.process through the router graph of each demo.
+ *
+ * The web demo is also measured with its answer cache on, where repeated
+ * questions are cache hits, and with parallel routing on.
+ *
+ * Run with the gc profiler to see the allocation rate as well:
+ * java -jar target/benchmarks.jar ApplicationBenchmark -prof gc
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ApplicationBenchmark {
+
+    private static final long CACHE_SIZE = 1 << 20;
+
+    private Application emailApp;
+    private Application webApp;
+    private Application webCachedApp;
+    private Application webParallelApp;
+    private Application calculatorApp;
+    private ExecutorService routingExecutor;
+
+    /**
+     * Build one application per demo
+     */
+    @Setup
+    public void setUp() {
+        emailApp = new Application(RouterGraphs.email());
+        webApp = new Application(RouterGraphs.web());
+        AnswerCache cache = new AnswerCache(CACHE_SIZE, AnswerCache.DEFAULT_TTL);
+        webCachedApp = new Application(RouterGraphs.web(cache, new SingleFlight(), null));
+        routingExecutor = Executors.newCachedThreadPool();
+        webParallelApp = new Application(RouterGraphs.web(null, new SingleFlight(), routingExecutor));
+        calculatorApp = new Application(RouterGraphs.calculator());
+    }
+
+    /**
+     * Stop the threads of parallel routing
+     */
+    @TearDown
+    public void tearDown() {
+        routingExecutor.shutdownNow();
+    }
+
+    /**
+     * An email subject, as EmailManager.readEmail passes it on
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response email() {
+        return emailApp.process(new Request("WHAT IS THE TIME?"));
+    }
+
+    /**
+     * A web question the keyword router answers
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response webKeywordHit() {
+        return webApp.process(new Request("What day is it?"));
+    }
+
+    /**
+     * A web question that falls through to the search agent
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response webFallback() {
+        return webApp.process(new Request("Who is Alan Turing?"));
+    }
+
+    /**
+     * A web question the search agent has already answered, with the answer cache on
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response webCachedFallback() {
+        return webCachedApp.process(new Request("Who is Alan Turing?"));
+    }
+
+    /**
+     * A web question the keyword router answers, with parallel routing on
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response webParallelKeywordHit() {
+        return webParallelApp.process(new Request("What day is it?"));
+    }
+
+    /**
+     * A web question that falls through to the search agent, with parallel routing on
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response webParallelFallback() {
+        return webParallelApp.process(new Request("Who is Alan Turing?"));
+    }
+
+    /**
+     * A calculator expression
+     *
+     * @return the response
+     */
+    @Benchmark
+    public Response calculator() {
+        return calculatorApp.process(new Request("(2 + 3) * 4 / 5"));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.CalculatorAgent;
+import edu.jhuapl.dorset.agents.DateTimeAgent;
+import edu.jhuapl.dorset.config.MultiValuedMap;
+import edu.jhuapl.dorset.routing.ChainedRouter;
+import edu.jhuapl.dorset.routing.KeywordRouter;
+import edu.jhuapl.dorset.routing.Router;
+import edu.jhuapl.dorset.routing.RouterAgentConfig;
+import edu.jhuapl.dorset.routing.SingleAgentRouter;
+
+/**
+ * The router graphs the demos build, for benchmarking.
+ *
+ * These must be kept in step with the demos they copy. Agents that go to
+ * the network are replaced with stubs.
+ */
+public final class RouterGraphs {
+
+    private RouterGraphs() {
+    }
+
+    /**
+     * The router built by EmailClient
+     *
+     * @return a single agent router to the date/time agent
+     */
+    public static Router email() {
+        return new SingleAgentRouter(new DateTimeAgent());
+    }
+
+    /**
+     * The keyword router built by AppInitializer in the web demo
+     *
+     * @return a keyword router that sends time and date questions to the date/time agent
+     */
+    public static Router webKeywords() {
+        return webKeywords(new DateTimeAgent());
+    }
+
+    /**
+     * The full router built by AppInitializer in the web demo with its default settings
+     *
+     * @return the keyword router chained to a stubbed search agent, with identical requests collapsed
+     */
+    public static Router web() {
+        return web(null, new SingleFlight(), null);
+    }
+
+    /**
+     * The full router built by AppInitializer in the web demo
+     *
+     * As in AppInitializer, the routers and agents are wrapped by the cache
+     * before they are wrapped by the single flight, and the routers are
+     * chained last.
+     *
+     * @param cache   the answer cache, or null if answers are not cached
+     * @param singleFlight   collapses identical requests, or null if they are not collapsed
+     * @param routingExecutor   runs the agents for parallel routing, or null to chain the routers
+     * @return the keyword router chained to a stubbed search agent
+     */
+    public static Router web(AnswerCache cache, SingleFlight singleFlight, ExecutorService routingExecutor) {
+        Agent timeAgent = new DateTimeAgent();
+        Agent searchAgent = new StubSearchAgent();
+        Router kwRouter = webKeywords(timeAgent);
+        Router searchRouter = new SingleAgentRouter(searchAgent);
+        if (cache != null) {
+            kwRouter = cache.wrap(kwRouter);
+            searchRouter = cache.wrap(searchRouter);
+            timeAgent = cache.wrap(timeAgent);
+            searchAgent = cache.wrap(searchAgent);
+        }
+        if (singleFlight != null) {
+            kwRouter = singleFlight.wrap(kwRouter);
+            searchRouter = singleFlight.wrap(searchRouter);
+            timeAgent = singleFlight.wrap(timeAgent);
+            searchAgent = singleFlight.wrap(searchAgent);
+        }
+        if (routingExecutor != null) {
+            return new ParallelChainedRouter(routingExecutor,
+                            new HashSet<Agent>(Arrays.asList(timeAgent, searchAgent)), kwRouter, searchRouter);
+        }
+        return new ChainedRouter(kwRouter, searchRouter);
+    }
+
+    private static Router webKeywords(Agent timeAgent) {
+        MultiValuedMap timeAgentParams = new MultiValuedMap();
+        timeAgentParams.addString(KeywordRouter.KEYWORDS, "time");
+        timeAgentParams.addString(KeywordRouter.KEYWORDS, "date");
+        timeAgentParams.addString(KeywordRouter.KEYWORDS, "day");
+        RouterAgentConfig kwConfig = RouterAgentConfig.create();
+        kwConfig.add(timeAgent, timeAgentParams);
+        return new KeywordRouter(kwConfig);
+    }
+
+    /**
+     * The router built by the Calculator demo
+     *
+     * @return a single agent router to the calculator agent
+     */
+    public static Router calculator() {
+        return new SingleAgentRouter(new CalculatorAgent());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhuapl.dorset.Request;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+import edu.jhuapl.dorset.agents.DateTimeAgent;
+import edu.jhuapl.dorset.routing.Router;
+
+/**
+ * Benchmarks each hop of the web demo's routing on its own.
+ *
+ * Comparing these with ApplicationBenchmark shows what the keyword router,
+ * the chained router and the agent each cost, and what Application adds.
+ * Run with the gc profiler to see the allocation rate as well:
+ * java -jar target/benchmarks.jar RoutingBenchmark -prof gc
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+    private Router keywordRouter;
+    private Router chainedRouter;
+    private Agent dateTimeAgent;
+    private Request keywordHit;
+    private Request keywordMiss;
+
+    /**
+     * Build the routers and requests
+     */
+    @Setup
+    public void setUp() {
+        keywordRouter = RouterGraphs.webKeywords();
+        chainedRouter = RouterGraphs.web();
+        dateTimeAgent = new DateTimeAgent();
+        keywordHit = new Request("What day is it?");
+        keywordMiss = new Request("Who is Alan Turing?");
+    }
+
+    /**
+     * The keyword router finding the date/time agent
+     *
+     * @return the agents routed to
+     */
+    @Benchmark
+    public Agent[] keywordRouterHit() {
+        return keywordRouter.route(keywordHit);
+    }
+
+    /**
+     * The keyword router finding no agent
+     *
+     * @return the agents routed to
+     */
+    @Benchmark
+    public Agent[] keywordRouterMiss() {
+        return keywordRouter.route(keywordMiss);
+    }
+
+    /**
+     * The chained router stopping at the keyword router
+     *
+     * @return the agents routed to
+     */
+    @Benchmark
+    public Agent[] chainedRouterHit() {
+        return chainedRouter.route(keywordHit);
+    }
+
+    /**
+     * The chained router falling through to the search agent
+     *
+     * @return the agents routed to
+     */
+    @Benchmark
+    public Agent[] chainedRouterFallback() {
+        return chainedRouter.route(keywordMiss);
+    }
+
+    /**
+     * The date/time agent without any routing
+     *
+     * @return the agent's response
+     */
+    @Benchmark
+    public AgentResponse dateTimeAgent() {
+        return dateTimeAgent.process(new AgentRequest(keywordHit.getText()));
+    }
+}
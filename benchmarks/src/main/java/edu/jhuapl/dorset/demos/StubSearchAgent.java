@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import edu.jhuapl.dorset.agents.AbstractAgent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+
+/**
+ * Stands in for the DuckDuckGo agent without going to the network.
+ *
+ * Every request gets the same canned answer, so a benchmark measures the
+ * cost of routing to the agent rather than the search engine.
+ */
+public class StubSearchAgent extends AbstractAgent {
+
+    private static final String ANSWER = "Alan Mathison Turing was an English computer scientist, "
+                    + "mathematician, logician, cryptanalyst, philosopher and theoretical biologist.";
+
+    @Override
+    public AgentResponse process(AgentRequest request) {
+        return new AgentResponse(ANSWER);
+    }
+}
@@ -37,6 +37,13 @@ public class Calculator {
 
         Agent agent = new CalculatorAgent();
         Router router = new SingleAgentRouter(agent);
+
+        // Answers are cached when the calculator.answerCacheSize system property is set.
+        AnswerCache cache = AnswerCache.create(System.getProperties(), "calculator.");
+        if (cache != null) {
+            cache.registerMBean("calculator");
+            router = cache.wrap(router);
+        }
         Application app = new Application(router);
 
         System.out.println("Welcome to the Dorset calculator demo. "
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import edu.jhuapl.dorset.agents.Agent;
+
+/**
+ * Wraps agents to change how they answer, such as caching their answers.
+ *
+ * A WrappingRouter applies the wrapper to every agent a router picks.
+ */
+public interface AgentWrapper {
+
+    /**
+     * Wrap an agent
+     *
+     * @param agent   the agent
+     * @return the wrapped agent, or the agent itself if it is left alone
+     */
+    Agent wrap(Agent agent);
+
+    /**
+     * An agent that passes requests on to the agent it wraps
+     */
+    interface Wrapped {
+        /**
+         * Get the wrapped agent
+         *
+         * @return the agent
+         */
+        Agent getAgent();
+    }
+}
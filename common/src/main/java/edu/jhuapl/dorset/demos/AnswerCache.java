@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.agents.AbstractAgent;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+import edu.jhuapl.dorset.routing.Router;
+
+/**
+ * Remembers the answers agents gave, shared by the demos' front ends.
+ *
+ * A front end wraps its router with wrap(Router), and the agents it routes
+ * to are then wrapped so that successful answers are kept, keyed on the
+ * agent and the request text as RequestKeys matches it: lowercased with
+ * whitespace collapsed and trailing punctuation dropped, or exact for the
+ * agents given exact keys. Each agent has its own time to live, found by
+ * the class name of the agent behind any wrappers, such as the agent a
+ * ResilientAgent guards. An agent with a time to live of zero is never
+ * cached. DateTimeAgent defaults to zero because its answers change, and
+ * EchoAgent because its answers are the request text itself.
+ *
+ * The cache is bounded by an estimate of the memory its answers use, and
+ * the least recently used answers are dropped first. Hits, misses and
+ * evictions are counted and can be published over JMX.
+ */
+public class AnswerCache implements AgentWrapper, AnswerCacheMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnswerCache.class);
+
+    public static final String SIZE_KEY = "answerCacheSize";
+    public static final String TTL_KEY = "answerCacheTtl";
+    public static final String EXACT_AGENTS_KEY = "answerCacheExactAgents";
+    public static final long DEFAULT_TTL = 300000;
+
+    private static final String DOMAIN = "edu.jhuapl.dorset.demos";
+    // rough size of an entry's objects other than its strings
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final long maxBytes;
+    private final long defaultTtl;
+    private final Map<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+    private final RequestKeys keys = new RequestKeys();
+    private final ConcurrentMap<Agent, Agent> wrappers = new ConcurrentHashMap<Agent, Agent>();
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create an AnswerCache
+     *
+     * @param maxBytes   the most memory the cached answers may use
+     * @param defaultTtl   milliseconds an answer is kept for agents without their own time to live
+     */
+    public AnswerCache(long maxBytes, long defaultTtl) {
+        this.maxBytes = maxBytes;
+        this.defaultTtl = defaultTtl;
+        ttls.put("DateTimeAgent", 0L);
+        ttls.put("EchoAgent", 0L);
+    }
+
+    /**
+     * Create an AnswerCache from properties if one is configured
+     *
+     * The properties are the prefix followed by answerCacheSize (bytes),
+     * answerCacheTtl (milliseconds), answerCacheTtl.&lt;agent class&gt;
+     * for the time to live of one kind of agent, and answerCacheExactAgents,
+     * a comma separated list of the agent classes that use exact keys.
+     *
+     * @param properties   the properties
+     * @param prefix   the prefix of the cache's properties
+     * @return the cache or null if answerCacheSize is not set above zero
+     */
+    public static AnswerCache create(Properties properties, String prefix) {
+        long size = Long.parseLong(properties.getProperty(prefix + SIZE_KEY, "0"));
+        if (size <= 0) {
+            return null;
+        }
+        AnswerCache cache = new AnswerCache(size,
+                        Long.parseLong(properties.getProperty(prefix + TTL_KEY, String.valueOf(DEFAULT_TTL))));
+        String agentPrefix = prefix + TTL_KEY + ".";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(agentPrefix)) {
+                cache.setTtl(name.substring(agentPrefix.length()), Long.parseLong(properties.getProperty(name)));
+            }
+        }
+        for (String agentClass : properties.getProperty(prefix + EXACT_AGENTS_KEY, "").split(",")) {
+            if (!agentClass.trim().isEmpty()) {
+                cache.setExactKeys(agentClass.trim());
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Set how long the answers of one kind of agent are kept
+     *
+     * @param agentClass   the simple name of the agent's class
+     * @param ttl   milliseconds an answer is kept, or zero to never cache it
+     */
+    public void setTtl(String agentClass, long ttl) {
+        ttls.put(agentClass, ttl);
+    }
+
+    /**
+     * Key the answers of one kind of agent on the exact request text
+     *
+     * @param agentClass   the simple name of the agent's class
+     */
+    public void setExactKeys(String agentClass) {
+        keys.setExact(agentClass);
+    }
+
+    /**
+     * Get the rules the cache matches requests by
+     *
+     * A SingleFlight given these rules collapses the same requests the cache
+     * would answer from one entry.
+     *
+     * @return the request keys
+     */
+    public RequestKeys getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get how long an agent's answers are kept
+     *
+     * @param agent   the agent
+     * @return milliseconds an answer is kept, or zero if it is never cached
+     */
+    public long getTtl(Agent agent) {
+        Long ttl = ttls.get(RequestKeys.getAgentClass(agent));
+        return ttl != null ? ttl : defaultTtl;
+    }
+
+    /**
+     * Get the key text of a request to an agent
+     *
+     * @param agent   the agent
+     * @param text   the request text
+     * @return the request text if the agent uses exact keys, otherwise the normalized text
+     */
+    public String getKeyText(Agent agent, String text) {
+        return keys.getKeyText(agent, text);
+    }
+
+    /**
+     * Wrap a router so that the answers of the agents it routes to are cached
+     *
+     * @param router   the router
+     * @return the caching router
+     */
+    public Router wrap(Router router) {
+        return new WrappingRouter(router, this);
+    }
+
+    /**
+     * Wrap an agent so that its answers are cached
+     *
+     * The same agent always gets the same wrapper.
+     *
+     * @param agent   the agent
+     * @return the caching agent, or the agent itself if its answers are never cached
+     */
+    @Override
+    public Agent wrap(Agent agent) {
+        if (getTtl(agent) <= 0) {
+            return agent;
+        }
+        Agent wrapper = wrappers.get(agent);
+        if (wrapper == null) {
+            wrappers.putIfAbsent(agent, new CachingAgent(agent));
+            wrapper = wrappers.get(agent);
+        }
+        return wrapper;
+    }
+
+    /**
+     * Publish the cache's statistics as a JMX MBean
+     *
+     * @param name   the name of the MBean, which tells caches apart
+     */
+    public void registerMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=AnswerCache,name=" + name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to register answer cache with JMX", e);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        return bytes;
+    }
+
+    @Override
+    public long getMaxSizeBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get a cached answer
+     *
+     * @param key   the agent and request
+     * @return the answer or null if there is none or it has expired
+     */
+    private synchronized AgentResponse get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Cache an answer, dropping the least recently used answers to make room
+     *
+     * @param key   the agent and request
+     * @param response   the answer
+     * @param ttl   milliseconds the answer is kept
+     */
+    private synchronized void put(Key key, AgentResponse response, long ttl) {
+        Entry entry = new Entry(response, System.currentTimeMillis() + ttl, weigh(key, response));
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.weight;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().weight;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.weight;
+        }
+    }
+
+    private static int weigh(Key key, AgentResponse response) {
+        String text = response.getText();
+        return ENTRY_OVERHEAD + 2 * (key.text.length() + (text != null ? text.length() : 0));
+    }
+
+    /**
+     * Answers with a cached answer when there is one
+     */
+    private class CachingAgent extends AbstractAgent implements AgentWrapper.Wrapped {
+        private final Agent agent;
+
+        private CachingAgent(Agent agent) {
+            this.agent = agent;
+            setName(agent.getName());
+        }
+
+        @Override
+        public Agent getAgent() {
+            return agent;
+        }
+
+        @Override
+        public AgentResponse process(AgentRequest request) {
+            Key key = new Key(agent, getKeyText(agent, request.getText()));
+            AgentResponse response = get(key);
+            if (response != null) {
+                hits.incrementAndGet();
+                return response;
+            }
+            misses.incrementAndGet();
+            response = agent.process(request);
+            if (response != null && response.isSuccess()) {
+                put(key, response, getTtl(agent));
+            }
+            return response;
+        }
+    }
+
+    private static class Key {
+        private final Agent agent;
+        private final String text;
+
+        private Key(Agent agent, String text) {
+            this.agent = agent;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return agent == other.agent && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(agent) + text.hashCode();
+        }
+    }
+
+    private static class Entry {
+        private final AgentResponse response;
+        private final long expires;
+        private final int weight;
+
+        private Entry(AgentResponse response, long expires, int weight) {
+            this.response = response;
+            this.expires = expires;
+            this.weight = weight;
+        }
+    }
+}
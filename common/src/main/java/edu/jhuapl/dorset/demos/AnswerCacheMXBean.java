@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+/**
+ * JMX view of an AnswerCache
+ */
+public interface AnswerCacheMXBean {
+
+    /**
+     * Get the number of requests answered from the cache
+     *
+     * @return the number of hits
+     */
+    long getHitCount();
+
+    /**
+     * Get the number of cacheable requests that went to an agent
+     *
+     * @return the number of misses
+     */
+    long getMissCount();
+
+    /**
+     * Get the number of answers dropped to stay within the size limit
+     *
+     * @return the number of evictions
+     */
+    long getEvictionCount();
+
+    /**
+     * Get the number of answers in the cache
+     *
+     * @return the number of answers
+     */
+    int getEntryCount();
+
+    /**
+     * Get the estimated memory used by the cached answers
+     *
+     * @return the size in bytes
+     */
+    long getSizeBytes();
+
+    /**
+     * Get the most memory the cached answers may use
+     *
+     * @return the size in bytes
+     */
+    long getMaxSizeBytes();
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the handling of inbound messages for the email and Slack front ends.
+ *
+ * In platform mode, messages are handled by a fixed number of threads. In
+ * virtual mode, each message gets its own virtual thread, so a message
+ * waiting on a slow agent or mail server does not tie up an OS thread.
+ * Either way, a semaphore bounds the number of messages in flight, and
+ * execute waits for a permit, which slows the caller down when the limit
+ * is reached.
+ *
+ * Virtual threads need Java 21 or later. The demos are built for Java 7, so
+ * they are created by reflection, and on an older JVM virtual mode falls
+ * back to platform threads.
+ */
+public class MessageExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageExecutor.class);
+
+    /**
+     * How messages are given threads
+     */
+    public enum Mode {
+        /** A fixed pool of platform threads */
+        PLATFORM,
+        /** A new virtual thread for each message */
+        VIRTUAL;
+
+        /**
+         * Parse a mode from a configuration value
+         *
+         * @param value   the value, ignoring case
+         * @return the mode
+         * @throws IllegalArgumentException   if the value is not a mode
+         */
+        public static Mode parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final String name;
+    private final Mode mode;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final ExecutorService pool;
+    private final ThreadFactory virtualFactory;
+    private volatile boolean shutdown;
+
+    /**
+     * Create a MessageExecutor
+     *
+     * @param name   the name of the executor, used to name its threads
+     * @param mode   the requested mode
+     * @param threads   the number of threads in platform mode
+     * @param maxInFlight   the maximum number of messages being handled at once
+     */
+    public MessageExecutor(final String name, Mode mode, int threads, int maxInFlight) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        permits = new Semaphore(maxInFlight, true);
+        ThreadFactory factory = null;
+        if (mode == Mode.VIRTUAL) {
+            factory = createVirtualThreadFactory(name);
+            if (factory == null) {
+                logger.warn("Virtual threads need Java 21 or later. " + name + " is using platform threads.");
+            }
+        }
+        virtualFactory = factory;
+        if (virtualFactory != null) {
+            this.mode = Mode.VIRTUAL;
+            pool = null;
+        } else {
+            this.mode = Mode.PLATFORM;
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, name + "-" + count.incrementAndGet());
+                }
+            });
+        }
+        logger.info(name + " is handling up to " + maxInFlight + " messages at once on "
+                        + (virtualFactory != null ? "virtual threads" : threads + " platform threads"));
+    }
+
+    /**
+     * Check whether this JVM supports virtual threads
+     *
+     * @return whether virtual mode is available
+     */
+    public static boolean isVirtualThreadSupported() {
+        return createVirtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Get the name of the executor
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the mode in use, which is platform if virtual was requested but is not supported
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of messages being handled
+     *
+     * @return the number of messages in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Handle a message, waiting while the in flight limit is reached
+     *
+     * @param task   the handling of the message
+     * @throws InterruptedException   if interrupted while waiting for a permit
+     * @throws IllegalStateException   if the executor has been shut down
+     */
+    public void execute(final Runnable task) throws InterruptedException {
+        if (shutdown) {
+            throw new IllegalStateException(name + " has been shut down");
+        }
+        permits.acquire();
+        Runnable wrapped = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to handle message in " + name, e);
+                } finally {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            if (virtualFactory != null) {
+                virtualFactory.newThread(wrapped).start();
+            } else {
+                pool.execute(wrapped);
+            }
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting messages and let those in flight finish
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Wait for the messages in flight to finish after shutdown
+     *
+     * @param timeout   the longest time to wait in milliseconds
+     * @return whether all messages finished
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        if (!permits.tryAcquire(maxInFlight, timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        permits.release(maxInFlight);
+        return true;
+    }
+
+    /**
+     * Build a factory of named virtual threads with Thread.ofVirtual()
+     *
+     * @param name   the prefix of the thread names
+     * @return the factory or null if virtual threads are not supported
+     */
+    private static ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
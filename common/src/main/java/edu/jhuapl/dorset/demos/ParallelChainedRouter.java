@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.Request;
+import edu.jhuapl.dorset.ResponseStatus;
+import edu.jhuapl.dorset.agents.AbstractAgent;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+import edu.jhuapl.dorset.routing.Router;
+
+/**
+ * Chains routers and runs their agents at the same time
+ * 
+ * Every router in the chain is asked for agents, and the agents are ranked
+ * in the order of the routers. The agents flagged as speculative are all
+ * started at once and the answer of the highest ranked agent that succeeds
+ * is returned, cancelling the agents ranked below it. This makes the time
+ * to answer that of the slowest agent needed rather than the sum of them.
+ * 
+ * Only agents that are cheap and idempotent should be flagged, because they
+ * may run for requests that another agent ends up answering. Agents that
+ * are not flagged run one at a time, and only once every agent ranked above
+ * them has failed.
+ */
+public class ParallelChainedRouter implements Router {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelChainedRouter.class);
+
+    private final ExecutorService executor;
+    private final Set<Agent> speculative;
+    private final Router[] routers;
+
+    /**
+     * Create a ParallelChainedRouter
+     * 
+     * @param executor  Executor the speculative agents run on
+     * @param speculative  Agents that are safe to run at the same time as others
+     * @param routers  Routers in the order of their agents' rank
+     */
+    public ParallelChainedRouter(ExecutorService executor, Set<Agent> speculative, Router... routers) {
+        this.executor = executor;
+        this.speculative = Collections.newSetFromMap(new IdentityHashMap<Agent, Boolean>());
+        this.speculative.addAll(speculative);
+        this.routers = routers;
+    }
+
+    @Override
+    public Agent[] route(Request request) {
+        Agent[] agents = collect(request);
+        if (agents.length < 2) {
+            return agents;
+        }
+        return new Agent[] {new ParallelAgent(agents)};
+    }
+
+    @Override
+    public Agent[] getAgents() {
+        List<Agent> agents = new ArrayList<Agent>();
+        Set<Agent> seen = Collections.newSetFromMap(new IdentityHashMap<Agent, Boolean>());
+        for (Router router : routers) {
+            for (Agent agent : router.getAgents()) {
+                if (seen.add(agent)) {
+                    agents.add(agent);
+                }
+            }
+        }
+        return agents.toArray(new Agent[agents.size()]);
+    }
+
+    /**
+     * Gets the agents of every router for a request in rank order
+     * 
+     * @param request  Request being routed
+     * @return the agents
+     */
+    private Agent[] collect(Request request) {
+        List<Agent> agents = new ArrayList<Agent>();
+        Set<Agent> seen = Collections.newSetFromMap(new IdentityHashMap<Agent, Boolean>());
+        for (Router router : routers) {
+            for (Agent agent : router.route(request)) {
+                if (seen.add(agent)) {
+                    agents.add(agent);
+                }
+            }
+        }
+        return agents.toArray(new Agent[agents.size()]);
+    }
+
+    /**
+     * Stands in for the agents of one request
+     */
+    private class ParallelAgent extends AbstractAgent {
+        private final Agent[] agents;
+
+        private ParallelAgent(Agent[] agents) {
+            this.agents = agents;
+            StringBuilder name = new StringBuilder();
+            for (Agent agent : agents) {
+                name.append(name.length() == 0 ? "" : "|").append(agent.getName());
+            }
+            setName(name.toString());
+        }
+
+        @Override
+        public AgentResponse process(final AgentRequest request) {
+            List<Future<AgentResponse>> futures = new ArrayList<Future<AgentResponse>>(agents.length);
+            for (Agent agent : agents) {
+                if (speculative.contains(agent)) {
+                    futures.add(start(agent, request));
+                } else {
+                    futures.add(null);
+                }
+            }
+
+            AgentResponse response = new AgentResponse(ResponseStatus.Code.AGENT_DID_NOT_KNOW_ANSWER);
+            try {
+                for (int n = 0; n < agents.length; n++) {
+                    AgentResponse answer = futures.get(n) == null ? processInline(agents[n], request)
+                                    : get(agents[n], futures.get(n));
+                    if (answer != null && answer.isSuccess()) {
+                        return answer;
+                    }
+                    if (answer != null) {
+                        response = answer;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = new AgentResponse(ResponseStatus.Code.AGENT_INTERNAL_ERROR);
+            } finally {
+                for (Future<AgentResponse> future : futures) {
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+            return response;
+        }
+
+        /**
+         * Start an agent on the executor, or on this thread if the executor is full
+         */
+        private Future<AgentResponse> start(final Agent agent, final AgentRequest request) {
+            FutureTask<AgentResponse> task = new FutureTask<AgentResponse>(new Callable<AgentResponse>() {
+                @Override
+                public AgentResponse call() {
+                    return agent.process(request);
+                }
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            return task;
+        }
+
+        private AgentResponse get(Agent agent, Future<AgentResponse> future) throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                logger.warn("Agent " + agent.getName() + " failed", e.getCause());
+                return null;
+            }
+        }
+
+        private AgentResponse processInline(Agent agent, AgentRequest request) {
+            try {
+                return agent.process(request);
+            } catch (RuntimeException e) {
+                logger.warn("Agent " + agent.getName() + " failed", e);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import edu.jhuapl.dorset.Application;
+import edu.jhuapl.dorset.agents.Agent;
+
+/**
+ * Decides which requests to an agent are the same request.
+ *
+ * Requests match when their text is the same once lowercased, with
+ * whitespace collapsed and trailing punctuation dropped. An agent whose
+ * answers depend on the exact wording can be given exact keys instead,
+ * which are the request text as it was sent. Agents are told apart by the
+ * class name of the agent behind any wrappers. The AnswerCache and
+ * SingleFlight match requests by the same rules.
+ */
+public class RequestKeys {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern TRAILING_PUNCTUATION = Pattern.compile("[\\s?!.]+$");
+
+    private final Set<String> exactAgents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Key the requests to one kind of agent on the exact request text
+     *
+     * @param agentClass   the simple name of the agent's class
+     */
+    public void setExact(String agentClass) {
+        exactAgents.add(agentClass);
+    }
+
+    /**
+     * Get the key text of a request to an agent
+     *
+     * @param agent   the agent
+     * @param text   the request text
+     * @return the request text if the agent uses exact keys, otherwise the normalized text
+     */
+    public String getKeyText(Agent agent, String text) {
+        return exactAgents.contains(getAgentClass(agent)) ? text : normalize(text);
+    }
+
+    /**
+     * Get the key text of a request to an application
+     *
+     * Any of the application's agents may answer, so the exact text is used
+     * if one of them uses exact keys.
+     *
+     * @param app   the application
+     * @param text   the request text
+     * @return the request text if an agent uses exact keys, otherwise the normalized text
+     */
+    public String getKeyText(Application app, String text) {
+        Agent[] agents = app.getAgents();
+        if (agents != null) {
+            for (Agent agent : agents) {
+                if (exactAgents.contains(getAgentClass(agent))) {
+                    return text;
+                }
+            }
+        }
+        return normalize(text);
+    }
+
+    /**
+     * Get the normalized text of a request
+     *
+     * @param text   the request text
+     * @return the text lowercased, with whitespace collapsed and trailing punctuation dropped
+     */
+    public static String normalize(String text) {
+        String key = WHITESPACE.matcher(text.trim()).replaceAll(" ").toLowerCase(Locale.ENGLISH);
+        return TRAILING_PUNCTUATION.matcher(key).replaceAll("");
+    }
+
+    /**
+     * Get the class name of the agent behind any wrappers
+     *
+     * @param agent   the agent, which may be wrapped
+     * @return the simple name of the wrapped agent's class
+     */
+    public static String getAgentClass(Agent agent) {
+        while (agent instanceof AgentWrapper.Wrapped) {
+            agent = ((AgentWrapper.Wrapped) agent).getAgent();
+        }
+        return agent.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.ResponseStatus;
+import edu.jhuapl.dorset.agents.AbstractAgent;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+
+/**
+ * Guards a network agent against a slow or failing server.
+ *
+ * Each call has a deadline, after which the caller gets an error instead of
+ * waiting for the socket to time out. If the call has not answered by the
+ * hedge delay, a second identical call is sent and the first answer wins.
+ * The hedge delay is either fixed or the 95th percentile of recent calls,
+ * so only the slowest calls are hedged. Only hedge agents whose requests
+ * are safe to send twice.
+ *
+ * After a number of failures in a row the circuit breaker opens, and calls
+ * fail at once with a canned response until the open time passes. Then a
+ * single trial call is let through, and the breaker closes if it succeeds.
+ */
+public class ResilientAgent extends AbstractAgent implements AgentWrapper.Wrapped {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResilientAgent.class);
+
+    // latencies kept for the hedge delay, and how many are needed before it is used
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final List<ResponseStatus.Code> FAILURE_CODES = Arrays.asList(
+                    ResponseStatus.Code.AGENT_INTERNAL_ERROR, ResponseStatus.Code.NO_RESPONSE_FROM_AGENT);
+
+    /**
+     * Whether the circuit breaker lets a call through
+     */
+    private enum Admission {
+        /** The breaker is open */
+        REFUSED,
+        /** The breaker is closed */
+        ALLOWED,
+        /** The breaker is open but this call may test whether the server is back */
+        TRIAL
+    }
+
+    /**
+     * Deadline, hedging and circuit breaker settings of one agent
+     */
+    public static class Settings {
+        public static final String DEADLINE_KEY = "deadline";
+        public static final String HEDGE_DELAY_KEY = "hedgeDelay";
+        public static final String FAILURE_THRESHOLD_KEY = "failureThreshold";
+        public static final String OPEN_TIME_KEY = "openTime";
+
+        /** Milliseconds a call may take */
+        public long deadline = 5000;
+        /** Milliseconds before a second call is sent, 0 for the 95th percentile of recent calls or -1 for never */
+        public long hedgeDelay = 0;
+        /** Failures in a row that open the circuit breaker */
+        public int failureThreshold = 5;
+        /** Milliseconds the circuit breaker stays open */
+        public long openTime = 30000;
+
+        /**
+         * Read settings from properties, keeping the defaults for those not set
+         *
+         * @param properties   the properties
+         * @param prefix   the prefix of the agent's properties
+         * @return the settings
+         */
+        public static Settings create(Properties properties, String prefix) {
+            Settings settings = new Settings();
+            settings.deadline = Long.parseLong(properties.getProperty(prefix + DEADLINE_KEY,
+                            String.valueOf(settings.deadline)));
+            settings.hedgeDelay = Long.parseLong(properties.getProperty(prefix + HEDGE_DELAY_KEY,
+                            String.valueOf(settings.hedgeDelay)));
+            settings.failureThreshold = Integer.parseInt(properties.getProperty(prefix + FAILURE_THRESHOLD_KEY,
+                            String.valueOf(settings.failureThreshold)));
+            settings.openTime = Long.parseLong(properties.getProperty(prefix + OPEN_TIME_KEY,
+                            String.valueOf(settings.openTime)));
+            return settings;
+        }
+    }
+
+    private final Agent agent;
+    private final ExecutorService executor;
+    private final Settings settings;
+    private final String unavailableMessage;
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int latencyCount;
+    private int latencyIndex;
+    private int failures;
+    private long openUntil;
+    private boolean trialInFlight;
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * Create a ResilientAgent
+     *
+     * @param agent   the network agent
+     * @param executor   the executor the agent's calls run on
+     * @param settings   the deadline, hedging and circuit breaker settings
+     */
+    public ResilientAgent(Agent agent, ExecutorService executor, Settings settings) {
+        this.agent = agent;
+        this.executor = executor;
+        this.settings = settings;
+        setName(agent.getName());
+        unavailableMessage = agent.getClass().getSimpleName() + " is unavailable. Please try again later.";
+    }
+
+    /**
+     * Get the agent that is guarded
+     *
+     * @return the agent
+     */
+    @Override
+    public Agent getAgent() {
+        return agent;
+    }
+
+    @Override
+    public AgentResponse process(final AgentRequest request) {
+        Admission admission = allowCall();
+        if (admission == Admission.REFUSED) {
+            shortCircuited.incrementAndGet();
+            return unavailable();
+        }
+        boolean trial = admission == Admission.TRIAL;
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(settings.deadline);
+        long hedgeDelay = getHedgeDelay();
+        long hedgeAt = hedgeDelay > 0 ? start + TimeUnit.MILLISECONDS.toNanos(hedgeDelay) : Long.MAX_VALUE;
+        Callable<AgentResponse> call = new Callable<AgentResponse>() {
+            @Override
+            public AgentResponse call() {
+                return agent.process(request);
+            }
+        };
+        CompletionService<AgentResponse> calls = new ExecutorCompletionService<AgentResponse>(executor);
+        List<Future<AgentResponse>> futures = new ArrayList<Future<AgentResponse>>(2);
+        try {
+            futures.add(calls.submit(call));
+        } catch (RejectedExecutionException e) {
+            // no thread to enforce the deadline on, and the server is not to blame
+            logger.debug("No thread to call " + agent.getName());
+            release(trial);
+            return unavailable();
+        }
+
+        AgentResponse failure = null;
+        int outstanding = 1;
+        try {
+            while (outstanding > 0) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    break;
+                }
+                if (now >= hedgeAt) {
+                    hedgeAt = Long.MAX_VALUE;
+                    try {
+                        futures.add(calls.submit(call));
+                        outstanding++;
+                        hedged.incrementAndGet();
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("No thread to hedge a call to " + agent.getName());
+                    }
+                    continue;
+                }
+                Future<AgentResponse> done = calls.poll(Math.min(hedgeAt, deadline) - now, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    continue;
+                }
+                outstanding--;
+                AgentResponse response = getResponse(done);
+                if (isHealthy(response)) {
+                    return record(response, start, trial);
+                }
+                failure = response;
+            }
+        } catch (InterruptedException e) {
+            // the caller gave up, which says nothing about the server
+            Thread.currentThread().interrupt();
+            release(trial);
+            return new AgentResponse(new ResponseStatus(ResponseStatus.Code.NO_RESPONSE_FROM_AGENT,
+                            "The call to " + agent.getName() + " was cancelled."));
+        } finally {
+            for (Future<AgentResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (failure == null) {
+            timedOut.incrementAndGet();
+            failure = new AgentResponse(new ResponseStatus(ResponseStatus.Code.NO_RESPONSE_FROM_AGENT,
+                            agent.getName() + " did not answer in time."));
+        }
+        return record(failure, start, trial);
+    }
+
+    /**
+     * Get the number of calls that were hedged with a second call
+     *
+     * @return the number of hedged calls
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * Get the number of calls that passed their deadline
+     *
+     * @return the number of timed out calls
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * Get the number of calls refused while the circuit breaker was open
+     *
+     * @return the number of refused calls
+     */
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+
+    /**
+     * Whether the circuit breaker lets a call through
+     *
+     * @return whether the call is refused, allowed, or the trial call
+     */
+    private synchronized Admission allowCall() {
+        if (openUntil == 0) {
+            return Admission.ALLOWED;
+        }
+        if (trialInFlight || System.currentTimeMillis() < openUntil) {
+            return Admission.REFUSED;
+        }
+        trialInFlight = true;
+        return Admission.TRIAL;
+    }
+
+    /**
+     * Let another trial call through after one that ended without an outcome
+     *
+     * @param trial   whether the call was the trial call
+     */
+    private synchronized void release(boolean trial) {
+        if (trial) {
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Update the circuit breaker and latencies with the outcome of a call
+     *
+     * @param response   the response the caller gets
+     * @param start   when the call started, from System.nanoTime
+     * @param trial   whether the call was the trial call
+     * @return the response
+     */
+    private synchronized AgentResponse record(AgentResponse response, long start, boolean trial) {
+        if (isHealthy(response)) {
+            if (openUntil != 0) {
+                logger.info("Closing circuit breaker of " + agent.getName());
+            }
+            failures = 0;
+            openUntil = 0;
+            latencies[latencyIndex] = System.nanoTime() - start;
+            latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+        } else {
+            failures++;
+            if (trial || failures >= settings.failureThreshold) {
+                if (openUntil == 0) {
+                    logger.warn("Opening circuit breaker of " + agent.getName() + " after " + failures
+                                    + " failures");
+                }
+                openUntil = System.currentTimeMillis() + settings.openTime;
+            }
+        }
+        if (trial) {
+            trialInFlight = false;
+        }
+        return response;
+    }
+
+    /**
+     * Get how long to wait before hedging a call
+     *
+     * @return milliseconds, or 0 if the call is not hedged
+     */
+    private synchronized long getHedgeDelay() {
+        if (settings.hedgeDelay != 0) {
+            return Math.max(settings.hedgeDelay, 0);
+        }
+        if (latencyCount < MIN_LATENCY_SAMPLES) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(latencyCount * 0.95) - 1]), 1);
+    }
+
+    private AgentResponse unavailable() {
+        return new AgentResponse(new ResponseStatus(ResponseStatus.Code.AGENT_INTERNAL_ERROR, unavailableMessage));
+    }
+
+    private AgentResponse getResponse(Future<AgentResponse> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            logger.warn("Call to " + agent.getName() + " failed", e.getCause());
+            return null;
+        }
+    }
+
+    private static boolean isHealthy(AgentResponse response) {
+        return response != null && (response.isSuccess() || response.getStatus() == null
+                        || !FAILURE_CODES.contains(response.getStatus().getCode()));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhuapl.dorset.Application;
+import edu.jhuapl.dorset.ResponseStatus;
+import edu.jhuapl.dorset.agents.AbstractAgent;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.agents.AgentRequest;
+import edu.jhuapl.dorset.agents.AgentResponse;
+import edu.jhuapl.dorset.routing.Router;
+
+/**
+ * Collapses identical requests so that they are answered once.
+ *
+ * A front end wraps its router with wrap(Router). When a request reaches an
+ * agent that is already working on the same request, it waits for that
+ * answer instead of asking the agent again. Requests match by RequestKeys,
+ * which should be the AnswerCache's keys when there is a cache. Other
+ * callers, such as a front end that asks a whole application, share answers
+ * with call.
+ *
+ * By default nothing is kept once the answer is given, so later requests
+ * always get a fresh answer. With a sharing window, an answer is also given
+ * to identical requests that arrive within the window after it. An answer
+ * that failed with an exception is never shared with later requests. An
+ * answer given while its thread was interrupted, such as one cancelled at a
+ * deadline, is not shared at all: the requests waiting for it ask again.
+ */
+public class SingleFlight implements AgentWrapper {
+
+    private final long window;
+    private final RequestKeys keys;
+    private final ConcurrentMap<Agent, Agent> wrappers = new ConcurrentHashMap<Agent, Agent>();
+    private final ConcurrentMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+    private final AtomicLong collapsed = new AtomicLong();
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Create a SingleFlight that only shares answers still being given
+     */
+    public SingleFlight() {
+        this(0);
+    }
+
+    /**
+     * Create a SingleFlight
+     *
+     * @param window   milliseconds an answer is shared after it is given
+     */
+    public SingleFlight(long window) {
+        this(window, new RequestKeys());
+    }
+
+    /**
+     * Create a SingleFlight that matches requests by given rules
+     *
+     * @param window   milliseconds an answer is shared after it is given
+     * @param keys   the rules requests are matched by
+     */
+    public SingleFlight(long window, RequestKeys keys) {
+        this.window = window;
+        this.keys = keys;
+    }
+
+    /**
+     * Wrap a router so that identical requests to its agents are collapsed
+     *
+     * @param router   the router
+     * @return the wrapped router
+     */
+    public Router wrap(Router router) {
+        return new WrappingRouter(router, this);
+    }
+
+    /**
+     * Wrap an agent so that identical requests to it are collapsed
+     *
+     * The same agent always gets the same wrapper.
+     *
+     * @param agent   the agent
+     * @return the wrapped agent
+     */
+    @Override
+    public Agent wrap(Agent agent) {
+        Agent wrapper = wrappers.get(agent);
+        if (wrapper == null) {
+            wrappers.putIfAbsent(agent, new SingleFlightAgent(agent));
+            wrapper = wrappers.get(agent);
+        }
+        return wrapper;
+    }
+
+    /**
+     * Answer a request, sharing the answer to an identical one if there is one
+     *
+     * @param owner   what answers the request, as requests only match others to the same owner
+     * @param text   the request text
+     * @param answer   gives the answer if there is none to share
+     * @return the answer
+     * @throws InterruptedException   if interrupted while answering or waiting for another request's answer
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T call(Object owner, String text, Callable<T> answer) throws InterruptedException {
+        Key key = new Key(owner, getKeyText(owner, text));
+        sweep();
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight != null && flight.isExpired()) {
+                flights.remove(key, flight);
+                continue;
+            }
+            if (flight != null) {
+                Object result = flight.await();
+                if (flight.abandoned) {
+                    continue;
+                }
+                collapsed.incrementAndGet();
+                return (T) result;
+            }
+            flight = new Flight();
+            if (flights.putIfAbsent(key, flight) == null) {
+                return (T) lead(key, flight, answer);
+            }
+        }
+    }
+
+    /**
+     * Give the answer to a request and share it with the identical requests waiting for it
+     *
+     * @param key   the key of the request
+     * @param flight   the flight the answer is shared through
+     * @param answer   gives the answer
+     * @return the answer
+     * @throws InterruptedException   if interrupted while answering
+     */
+    private Object lead(Key key, Flight flight, Callable<?> answer) throws InterruptedException {
+        Object result;
+        try {
+            result = answer.call();
+        } catch (InterruptedException e) {
+            abandon(key, flight);
+            throw e;
+        } catch (RuntimeException e) {
+            // a failed answer is given to the requests waiting for it, but not to later ones
+            flights.remove(key, flight);
+            flight.finish(null, e);
+            throw e;
+        } catch (Exception e) {
+            IllegalStateException failure = new IllegalStateException("Failed to answer request", e);
+            flights.remove(key, flight);
+            flight.finish(null, failure);
+            throw failure;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // the answer may be a placeholder for one that was cut short
+            abandon(key, flight);
+            return result;
+        }
+        if (window <= 0) {
+            flights.remove(key, flight);
+        }
+        flight.finish(result, null);
+        return result;
+    }
+
+    /**
+     * Drop a flight without sharing its answer, so the requests waiting for it ask again
+     *
+     * @param key   the key of the request
+     * @param flight   the flight
+     */
+    private void abandon(Key key, Flight flight) {
+        flights.remove(key, flight);
+        flight.abandoned = true;
+        flight.finish(null, null);
+    }
+
+    /**
+     * Get the key text of a request
+     *
+     * @param owner   what answers the request
+     * @param text   the request text
+     * @return the key text
+     */
+    private String getKeyText(Object owner, String text) {
+        if (owner instanceof Agent) {
+            return keys.getKeyText((Agent) owner, text);
+        } else if (owner instanceof Application) {
+            return keys.getKeyText((Application) owner, text);
+        }
+        return RequestKeys.normalize(text);
+    }
+
+    /**
+     * Get the number of requests that were given another request's answer
+     *
+     * @return the number of collapsed requests
+     */
+    public long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    /**
+     * Drop expired answers, at most once per window
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (window <= 0 || now - lastSweep < window) {
+            return;
+        }
+        lastSweep = now;
+        Iterator<Flight> iterator = flights.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Shares the answer to a request with identical requests
+     */
+    private class SingleFlightAgent extends AbstractAgent implements AgentWrapper.Wrapped {
+        private final Agent agent;
+
+        private SingleFlightAgent(Agent agent) {
+            this.agent = agent;
+            setName(agent.getName());
+        }
+
+        @Override
+        public Agent getAgent() {
+            return agent;
+        }
+
+        @Override
+        public AgentResponse process(final AgentRequest request) {
+            try {
+                return call(agent, request.getText(), new Callable<AgentResponse>() {
+                    @Override
+                    public AgentResponse call() {
+                        return agent.process(request);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new AgentResponse(ResponseStatus.Code.AGENT_INTERNAL_ERROR);
+            }
+        }
+    }
+
+    /**
+     * An answer being given or recently given
+     */
+    private class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Object result;
+        private RuntimeException failure;
+        private volatile boolean abandoned;
+        private volatile long answeredAt;
+
+        private void finish(Object result, RuntimeException failure) {
+            this.result = result;
+            this.failure = failure;
+            answeredAt = System.currentTimeMillis();
+            done.countDown();
+        }
+
+        private Object await() throws InterruptedException {
+            done.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        private boolean isExpired() {
+            return answeredAt > 0 && System.currentTimeMillis() - answeredAt > window;
+        }
+    }
+
+    private static class Key {
+        private final Object owner;
+        private final String text;
+
+        private Key(Object owner, String text) {
+            this.owner = owner;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return owner == other.owner && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(owner) + text.hashCode();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import edu.jhuapl.dorset.Request;
+import edu.jhuapl.dorset.agents.Agent;
+import edu.jhuapl.dorset.routing.Router;
+
+/**
+ * Routes like another router, to agents wrapped by an AgentWrapper.
+ *
+ * getAgents returns the router's own agents, so callers that look at
+ * which kinds of agents an application has still see them.
+ */
+public class WrappingRouter implements Router {
+
+    private final Router router;
+    private final AgentWrapper wrapper;
+
+    /**
+     * Create a WrappingRouter
+     *
+     * @param router   the router that picks the agents
+     * @param wrapper   the wrapper of the agents it picks
+     */
+    public WrappingRouter(Router router, AgentWrapper wrapper) {
+        this.router = router;
+        this.wrapper = wrapper;
+    }
+
+    @Override
+    public Agent[] route(Request request) {
+        Agent[] agents = router.route(request);
+        Agent[] wrapped = new Agent[agents.length];
+        for (int n = 0; n < agents.length; n++) {
+            wrapped[n] = wrapper.wrap(agents[n]);
+        }
+        return wrapped;
+    }
+
+    @Override
+    public Agent[] getAgents() {
+        return router.getAgents();
+    }
+}
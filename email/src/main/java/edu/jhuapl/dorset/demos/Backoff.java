@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter.
+ *
+ * Each delay doubles the one before, up to the maximum, and a random
+ * amount of up to half the delay is taken off so that clients that failed
+ * together do not all retry together.
+ */
+public class Backoff {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private long delay;
+
+    /**
+     * Create a Backoff
+     *
+     * @param initialDelay   the first delay in milliseconds
+     * @param maxDelay   the longest delay in milliseconds
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        this.initialDelay = Math.max(initialDelay, 1);
+        this.maxDelay = Math.max(maxDelay, this.initialDelay);
+        delay = this.initialDelay;
+    }
+
+    /**
+     * Get the next delay and double the one after it
+     *
+     * @return the delay in milliseconds
+     */
+    public synchronized long nextDelay() {
+        long next = delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        delay = Math.min(delay * 2, maxDelay);
+        return next;
+    }
+
+    /**
+     * Wait for the next delay
+     *
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public void sleep() throws InterruptedException {
+        Thread.sleep(nextDelay());
+    }
+
+    /**
+     * Go back to the initial delay after a success
+     */
+    public synchronized void reset() {
+        delay = initialDelay;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * Reads the text a sender typed into an email.
+ *
+ * Only text/plain parts are read, and they are streamed rather than loaded
+ * whole. Attachments are skipped by their disposition, so their content is
+ * never downloaded. Of the branches of a multipart/alternative, only the
+ * first plain text one is read. Quoted reply history is dropped, and reading
+ * stops once the character cap is reached.
+ */
+public class BodyTextExtractor {
+
+    private static final String TEXT_PLAIN = "text/plain";
+    private static final String ALTERNATIVE = "multipart/alternative";
+    private static final String MULTIPART = "multipart/*";
+    private static final String ENCAPSULATED = "message/rfc822";
+    private static final String CHARSET = "charset";
+    private static final String DEFAULT_CHARSET = "us-ascii";
+    private static final String QUOTE = ">";
+    private static final Pattern REPLY_HEADER = Pattern.compile(
+                    "^(On .+ wrote:|-+ ?Original Message ?-+|_{10,})\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private final int maxChars;
+
+    /**
+     * Create a BodyTextExtractor
+     *
+     * @param maxChars   the maximum number of characters to read from an email
+     */
+    public BodyTextExtractor(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Get the text of an email body
+     *
+     * @param part   the email or body part
+     * @return the text, at most the character cap long
+     * @throws MessagingException   if the body cannot be read
+     */
+    public String extract(Part part) throws MessagingException {
+        StringBuilder text = new StringBuilder();
+        try {
+            append(part, text);
+        } catch (IOException e) {
+            throw new MessagingException("Failed to read email body", e);
+        }
+        return text.toString().trim();
+    }
+
+    /**
+     * Append the text of a part
+     *
+     * @param part   the part
+     * @param text   the text read so far
+     * @return whether the part held any text
+     * @throws MessagingException   if the structure of the part cannot be read
+     * @throws IOException   if the content of the part cannot be read
+     */
+    private boolean append(Part part, StringBuilder text) throws MessagingException, IOException {
+        if (text.length() >= maxChars || isAttachment(part)) {
+            return false;
+        }
+        if (part.isMimeType(TEXT_PLAIN)) {
+            return appendText(part, text);
+        } else if (part.isMimeType(ALTERNATIVE)) {
+            Multipart mp = (Multipart) part.getContent();
+            for (int n = 0; n < mp.getCount(); n++) {
+                if (append(mp.getBodyPart(n), text)) {
+                    return true;
+                }
+            }
+        } else if (part.isMimeType(MULTIPART)) {
+            Multipart mp = (Multipart) part.getContent();
+            boolean found = false;
+            for (int n = 0; n < mp.getCount() && text.length() < maxChars; n++) {
+                found |= append(mp.getBodyPart(n), text);
+            }
+            return found;
+        } else if (part.isMimeType(ENCAPSULATED)) {
+            return append((Part) part.getContent(), text);
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a part is an attachment rather than part of the body
+     *
+     * @param part   the part
+     * @return whether the part is an attachment
+     * @throws MessagingException   if the headers of the part cannot be read
+     */
+    private boolean isAttachment(Part part) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+    }
+
+    /**
+     * Stream a text/plain part, dropping quoted reply history
+     *
+     * @param part   the part
+     * @param text   the text read so far
+     * @return whether the part held any text
+     * @throws MessagingException   if the part cannot be opened
+     * @throws IOException   if the part cannot be read
+     */
+    private boolean appendText(Part part, StringBuilder text) throws MessagingException, IOException {
+        int start = text.length();
+        InputStream in = part.getInputStream();
+        try {
+            BufferedReader reader = new BufferedReader(openReader(in, part));
+            StringBuilder line = new StringBuilder();
+            int ch = reader.read();
+            while (ch != -1 && text.length() + line.length() < maxChars) {
+                if (ch == '\n') {
+                    if (!appendLine(line, text)) {
+                        break;
+                    }
+                    line.setLength(0);
+                } else if (ch != '\r') {
+                    line.append((char) ch);
+                }
+                ch = reader.read();
+            }
+            appendLine(line, text);
+        } finally {
+            in.close();
+        }
+        if (text.length() > maxChars) {
+            text.setLength(maxChars);
+        }
+        return text.length() > start;
+    }
+
+    /**
+     * Append one line of a text part unless it is quoted history
+     *
+     * @param line   the line
+     * @param text   the text read so far
+     * @return false if the line starts the quoted history of a reply
+     */
+    private boolean appendLine(CharSequence line, StringBuilder text) {
+        String trimmed = line.toString().trim();
+        if (REPLY_HEADER.matcher(trimmed).matches()) {
+            return false;
+        }
+        if (!trimmed.startsWith(QUOTE)) {
+            text.append(line).append('\n');
+        }
+        return true;
+    }
+
+    /**
+     * Open a reader for a part in the charset it declares
+     *
+     * @param in   the decoded content of the part
+     * @param part   the part
+     * @return the reader
+     * @throws MessagingException   if the content type cannot be read
+     */
+    private Reader openReader(InputStream in, Part part) throws MessagingException {
+        String charset = DEFAULT_CHARSET;
+        try {
+            String declared = new ContentType(part.getContentType()).getParameter(CHARSET);
+            if (declared != null) {
+                charset = declared;
+            }
+        } catch (ParseException e) {
+            // fall back to the default charset
+            charset = DEFAULT_CHARSET;
+        }
+        try {
+            return new InputStreamReader(in, MimeUtility.javaCharset(charset));
+        } catch (UnsupportedEncodingException e) {
+            return new InputStreamReader(in);
+        }
+    }
+}
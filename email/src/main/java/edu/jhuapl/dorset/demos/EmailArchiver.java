@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Moves answered emails out of the inbox in batches.
+ *
+ * Answered emails are collected and moved together when the batch is full
+ * or the flush interval passes, whichever comes first. If a move fails, the
+ * emails stay in the batch and are tried again on the next flush.
+ */
+public class EmailArchiver {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailArchiver.class);
+
+    private static final String ARCHIVE_BATCH_SIZE_KEY = "archiveBatchSize";
+    private static final String ARCHIVE_FLUSH_INTERVAL_KEY = "archiveFlushInterval";
+    private static final int DEFAULT_ARCHIVE_BATCH_SIZE = 20;
+    private static final long DEFAULT_ARCHIVE_FLUSH_INTERVAL = 5000;
+
+    private final EmailManager manager;
+    private final WorkJournal journal;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+    private List<Long> pending = new ArrayList<Long>();
+
+    /**
+     * Create an EmailArchiver
+     *
+     * @param manager   the EmailManager for the inbox
+     * @param config   Configuration object that stores the batch size and flush interval
+     * @param journal   the journal archived emails are recorded in
+     */
+    public EmailArchiver(EmailManager manager, Config config, WorkJournal journal) {
+        this.manager = manager;
+        this.journal = journal;
+        batchSize = config.hasPath(ARCHIVE_BATCH_SIZE_KEY) ? config.getInt(ARCHIVE_BATCH_SIZE_KEY)
+                        : DEFAULT_ARCHIVE_BATCH_SIZE;
+        long flushInterval = config.hasPath(ARCHIVE_FLUSH_INTERVAL_KEY)
+                        ? config.getLong(ARCHIVE_FLUSH_INTERVAL_KEY) : DEFAULT_ARCHIVE_FLUSH_INTERVAL;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "email-archive");
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add an answered email to the next batch
+     *
+     * @param email   the email that was answered
+     */
+    public void archive(EmailMessage email) {
+        archive(email.getUid());
+    }
+
+    /**
+     * Add an answered email to the next batch by UID
+     *
+     * @param uid   the UID of the email that was answered
+     */
+    public void archive(long uid) {
+        boolean full;
+        synchronized (this) {
+            pending.add(uid);
+            full = pending.size() == batchSize;
+        }
+        if (full) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Move the current batch to the Complete folder
+     */
+    public void flush() {
+        List<Long> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<Long>();
+        }
+        long[] uids = new long[batch.size()];
+        for (int n = 0; n < uids.length; n++) {
+            uids[n] = batch.get(n);
+        }
+        try {
+            int moved = manager.moveEmails(FolderType.INBOX, FolderType.COMPLETE, uids);
+            logger.debug("Archived " + moved + " emails");
+            for (long uid : uids) {
+                journal.archived(manager.getName(), uid);
+            }
+        } catch (MessagingException e) {
+            logger.error("Failed to archive emails. Trying again on the next flush.", e);
+            synchronized (this) {
+                pending.addAll(0, batch);
+            }
+        }
+    }
+
+    /**
+     * Stop the flush timer and archive anything still in the batch
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(DEFAULT_ARCHIVE_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
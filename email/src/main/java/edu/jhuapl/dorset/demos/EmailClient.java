@@ -16,14 +16,25 @@
  */
 package edu.jhuapl.dorset.demos;
 
-import javax.mail.Message;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
 
 import edu.jhuapl.dorset.Application;
 import edu.jhuapl.dorset.Request;
@@ -33,39 +44,165 @@ import edu.jhuapl.dorset.agents.DateTimeAgent;
 import edu.jhuapl.dorset.routing.Router;
 import edu.jhuapl.dorset.routing.SingleAgentRouter;
 
-public class EmailClient {
+/**
+ * Answers email with a Dorset application.
+ *
+ * One or more mailboxes can be served. If the configuration has a mailboxes
+ * list, each entry is an account, with settings not given in the entry taken
+ * from the top level. Otherwise the top level settings are the one account.
+ *
+ * Emails move through a staged pipeline. Each mailbox has a producer that
+ * fetches new mail into the shared EmailQueue. Consumers take emails off
+ * the queue, parse them and ask the Dorset application for an answer. The reply is handed to the send stage,
+ * and once it is sent, the email is handed to the archiver, which moves
+ * answered emails out of the inbox in batches. The send stage and archiver
+ * each have their own threads, so a slow SMTP server does not hold up
+ * fetching or answering other email. A mailbox with sendBatchSize above one
+ * sends its replies in batches through its ReplySender instead, and emails
+ * are only archived once the server has accepted the reply.
+ *
+ * With executionMode set to virtual, a single consumer hands each email to
+ * its own virtual thread, which answers it and sends the reply. At most
+ * maxConcurrentEmails are answered at once.
+ *
+ * With coalesceQuestions on, identical questions that arrive within
+ * coalesceWindow milliseconds are answered once, and the answer is sent to
+ * each sender.
+ *
+ * With answerCacheSize set, the default application caches its agents'
+ * answers for answerCacheTtl milliseconds, or the time set for the agent's
+ * class in answerCacheAgentTtls. Agents listed in answerCacheExactAgents are
+ * cached by the exact question rather than its normalized form.
+ */
+public class EmailClient implements ReplySender.Listener {
 
     private static final Logger logger = LoggerFactory.getLogger(EmailClient.class);
 
     private static final String CONSUMER_THREAD_COUNT_KEY = "consumerThreads";
+    private static final String MAILBOXES_KEY = "mailboxes";
+    private static final String QUEUE_CAPACITY_KEY = "queueCapacity";
+    private static final String QUEUE_MAX_PER_SENDER_KEY = "queueMaxPerSender";
+    private static final int DEFAULT_QUEUE_CAPACITY = 20;
+    private static final String SEND_THREAD_COUNT_KEY = "sendThreads";
+    private static final String SEND_QUEUE_SIZE_KEY = "sendQueueSize";
+    private static final int DEFAULT_SEND_THREAD_COUNT = 2;
+    private static final int DEFAULT_SEND_QUEUE_SIZE = 20;
+    private static final long THROTTLE_WAIT = 100;
+    private static final long CLOSE_TIMEOUT = 10000;
+    private static final String JOURNAL_DIR_KEY = "journalDir";
+    private static final String JOURNAL_SEGMENT_SIZE_KEY = "journalSegmentSize";
+    private static final String JOURNAL_SYNC_INTERVAL_KEY = "journalSyncInterval";
+    private static final String DEFAULT_JOURNAL_DIR = "journal";
+    private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+    private static final String METRICS_PORT_KEY = "metricsPort";
+    private static final String EXECUTION_MODE_KEY = "executionMode";
+    private static final String MAX_CONCURRENT_EMAILS_KEY = "maxConcurrentEmails";
+    private static final int DEFAULT_MAX_CONCURRENT_EMAILS = 1000;
+    private static final String COALESCE_QUESTIONS_KEY = "coalesceQuestions";
+    private static final String COALESCE_WINDOW_KEY = "coalesceWindow";
+    private static final String COALESCE_EXCLUDE_AGENTS_KEY = "coalesceExcludeAgents";
+    private static final long DEFAULT_COALESCE_WINDOW = 2000;
+    private static final List<String> DEFAULT_COALESCE_EXCLUDE_AGENTS = Arrays.asList("DateTimeAgent");
+    private static final String ANSWER_CACHE_AGENT_TTLS_KEY = "answerCacheAgentTtls";
 
     private String consumerThreads;
     private EmailQueue emailQueue;
-    private EmailManager manager;
+    private Map<String, Mailbox> mailboxes = new LinkedHashMap<String, Mailbox>();
     private Application app;
+    private SingleFlight coalescer;
+    private PipelineStage sendStage;
+    private MessageExecutor answerExecutor;
+    private WorkJournal journal;
+    private EmailMetrics metrics = new EmailMetrics();
+    private MetricsHttpServer metricsServer;
+    private List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean running = true;
 
     /**
      * Create an EmailClient
      */
     public EmailClient() {
-        Config config = ConfigFactory.load();
+        this(ConfigFactory.load());
+    }
+
+    private EmailClient(Config config) {
+        this(config, new Application(cacheAnswers(config, new SingleAgentRouter(new DateTimeAgent()))));
+    }
+
+    /**
+     * Create an EmailClient with a given configuration and Dorset application
+     *
+     * @param config   Configuration object for the client and its mailboxes
+     * @param app   the Dorset application that answers the email
+     */
+    public EmailClient(Config config, Application app) {
+        this(config, app, null);
+    }
+
+    /**
+     * Create an EmailClient that writes the JavaMail debug output to a stream
+     *
+     * @param config   Configuration object for the client and its mailboxes
+     * @param app   the Dorset application that answers the email
+     * @param debugOut   where the debug output goes when mail.debug is set, or null for System.out
+     */
+    public EmailClient(Config config, Application app, PrintStream debugOut) {
+        this.app = app;
+        coalescer = createCoalescer(config);
         consumerThreads = config.getString(CONSUMER_THREAD_COUNT_KEY);
-        emailQueue = new EmailQueue();
+        emailQueue = new EmailQueue(getInt(config, QUEUE_CAPACITY_KEY, DEFAULT_QUEUE_CAPACITY),
+                        getInt(config, QUEUE_MAX_PER_SENDER_KEY, 0));
         try {
-            manager = new EmailManager(config);
-        } catch (MessagingException e) {
-            System.err.println("Check your network connection and account/server configurations. Quitting now.");
+            journal = new WorkJournal(
+                            new File(config.hasPath(JOURNAL_DIR_KEY) ? config.getString(JOURNAL_DIR_KEY)
+                                            : DEFAULT_JOURNAL_DIR),
+                            getInt(config, JOURNAL_SEGMENT_SIZE_KEY, DEFAULT_JOURNAL_SEGMENT_SIZE),
+                            config.hasPath(JOURNAL_SYNC_INTERVAL_KEY) ? config.getLong(JOURNAL_SYNC_INTERVAL_KEY)
+                                            : DEFAULT_JOURNAL_SYNC_INTERVAL);
+        } catch (IOException e) {
+            logger.error("Failed to open work journal", e);
+            System.err.println("Check that the journal directory can be written. Quitting now.");
             System.exit(-1);
         }
-        Agent agent = new DateTimeAgent();
-        Router router = new SingleAgentRouter(agent);
-        app = new Application(router);
+        List<Config> mailboxConfigs = getMailboxConfigs(config);
+        // with several mailboxes, no one mailbox gets more than its share of the queue by default
+        int defaultMaxInFlight = mailboxConfigs.size() > 1
+                        ? (emailQueue.getCapacity() + mailboxConfigs.size() - 1) / mailboxConfigs.size() : 0;
+        for (Config mailboxConfig : mailboxConfigs) {
+            try {
+                Mailbox mailbox = new Mailbox(new EmailManager(mailboxConfig, metrics, debugOut), mailboxConfig,
+                                defaultMaxInFlight, journal, this);
+                mailboxes.put(mailbox.getName(), mailbox);
+            } catch (MessagingException e) {
+                System.err.println("Check your network connection and account/server configurations. Quitting now.");
+                System.exit(-1);
+            }
+        }
 
-        EmailProducer producer = new EmailProducer(this);
-        new Thread(producer).start();
-        for (int n = 0; n < getConsumerThreadCount(); n++) {
+        sendStage = new PipelineStage("email-send",
+                        getInt(config, SEND_THREAD_COUNT_KEY, DEFAULT_SEND_THREAD_COUNT),
+                        getInt(config, SEND_QUEUE_SIZE_KEY, DEFAULT_SEND_QUEUE_SIZE));
+        startMetrics(config);
+
+        int consumerThreadCount = getConsumerThreadCount();
+        if (config.hasPath(EXECUTION_MODE_KEY)
+                        && MessageExecutor.Mode.parse(config.getString(EXECUTION_MODE_KEY))
+                                        == MessageExecutor.Mode.VIRTUAL) {
+            answerExecutor = new MessageExecutor("email-answer", MessageExecutor.Mode.VIRTUAL,
+                            consumerThreadCount,
+                            getInt(config, MAX_CONCURRENT_EMAILS_KEY, DEFAULT_MAX_CONCURRENT_EMAILS));
+            // one consumer is enough to hand emails out
+            consumerThreadCount = 1;
+        }
+        for (int n = 0; n < consumerThreadCount; n++) {
             EmailConsumer consumer = new EmailConsumer(this);
-            new Thread(consumer).start();
+            startThread(consumer, "email-consumer-" + (n + 1));
+        }
+        recoverUnfinishedWork();
+        for (Mailbox mailbox : mailboxes.values()) {
+            EmailProducer producer = new EmailProducer(this, mailbox);
+            startThread(producer, "email-producer-" + mailbox.getName());
         }
     }
 
@@ -79,6 +216,265 @@ public class EmailClient {
         new EmailClient();
     }
 
+    /**
+     * Get the configuration of each mailbox
+     *
+     * @param config   the top level configuration
+     * @return one configuration per mailbox
+     */
+    private List<Config> getMailboxConfigs(Config config) {
+        List<Config> configs = new ArrayList<Config>();
+        if (config.hasPath(MAILBOXES_KEY)) {
+            Config defaults = config.withoutPath(MAILBOXES_KEY);
+            for (Config mailboxConfig : config.getConfigList(MAILBOXES_KEY)) {
+                configs.add(mailboxConfig.withFallback(defaults));
+            }
+        } else {
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    /**
+     * Wrap a router so that its agents' answers are cached, if answerCacheSize is set
+     *
+     * @param config   Configuration object that may set the cache's size and times to live
+     * @param router   the router of the Dorset application
+     * @return the caching router or the router itself if caching is off
+     */
+    private static Router cacheAnswers(Config config, Router router) {
+        if (!config.hasPath(AnswerCache.SIZE_KEY) || config.getLong(AnswerCache.SIZE_KEY) <= 0) {
+            return router;
+        }
+        AnswerCache cache = new AnswerCache(config.getLong(AnswerCache.SIZE_KEY),
+                        config.hasPath(AnswerCache.TTL_KEY) ? config.getLong(AnswerCache.TTL_KEY)
+                                        : AnswerCache.DEFAULT_TTL);
+        if (config.hasPath(ANSWER_CACHE_AGENT_TTLS_KEY)) {
+            Config ttls = config.getConfig(ANSWER_CACHE_AGENT_TTLS_KEY);
+            for (Map.Entry<String, ConfigValue> entry : ttls.entrySet()) {
+                cache.setTtl(entry.getKey(), ttls.getLong(entry.getKey()));
+            }
+        }
+        if (config.hasPath(AnswerCache.EXACT_AGENTS_KEY)) {
+            for (String agentClass : config.getStringList(AnswerCache.EXACT_AGENTS_KEY)) {
+                cache.setExactKeys(agentClass);
+            }
+        }
+        cache.registerMBean("email");
+        return cache.wrap(router);
+    }
+
+    /**
+     * Create the coalescer for duplicate questions if it is turned on
+     *
+     * Coalescing stays off if the application has an agent whose answers
+     * depend on when the question is asked, such as DateTimeAgent.
+     *
+     * @param config   Configuration object that may set coalesceQuestions
+     * @return the coalescer or null if questions are not coalesced
+     */
+    private SingleFlight createCoalescer(Config config) {
+        if (!config.hasPath(COALESCE_QUESTIONS_KEY) || !config.getBoolean(COALESCE_QUESTIONS_KEY)) {
+            return null;
+        }
+        List<String> excluded = config.hasPath(COALESCE_EXCLUDE_AGENTS_KEY)
+                        ? config.getStringList(COALESCE_EXCLUDE_AGENTS_KEY) : DEFAULT_COALESCE_EXCLUDE_AGENTS;
+        for (Agent agent : app.getAgents()) {
+            if (excluded.contains(agent.getClass().getSimpleName())) {
+                logger.info("Not coalescing questions because " + agent.getClass().getSimpleName()
+                                + " gives time-sensitive answers");
+                return null;
+            }
+        }
+        // questions match as they do for the answer cache
+        RequestKeys keys = new RequestKeys();
+        if (config.hasPath(AnswerCache.EXACT_AGENTS_KEY)) {
+            for (String agentClass : config.getStringList(AnswerCache.EXACT_AGENTS_KEY)) {
+                keys.setExact(agentClass);
+            }
+        }
+        final SingleFlight coalescer = new SingleFlight(config.hasPath(COALESCE_WINDOW_KEY)
+                        ? config.getLong(COALESCE_WINDOW_KEY) : DEFAULT_COALESCE_WINDOW, keys);
+        metrics.setCoalescedCount(new EmailMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return coalescer.getCollapsedCount();
+            }
+        });
+        return coalescer;
+    }
+
+    /**
+     * Publish the metrics with JMX, and over HTTP if a metrics port is set
+     *
+     * @param config   Configuration object that may set metricsPort
+     */
+    private void startMetrics(Config config) {
+        metrics.setQueueDepths(new EmailMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return emailQueue.getDepth();
+            }
+        }, new EmailMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long depth = sendStage.getQueueDepth();
+                for (Mailbox mailbox : mailboxes.values()) {
+                    if (mailbox.getSender() != null) {
+                        depth += mailbox.getSender().getWaiting();
+                    }
+                }
+                return depth;
+            }
+        });
+        metrics.registerMBeans();
+        int port = getInt(config, METRICS_PORT_KEY, 0);
+        if (port > 0) {
+            try {
+                metricsServer = new MetricsHttpServer(port, metrics);
+            } catch (IOException e) {
+                logger.error("Failed to start metrics server on port " + port, e);
+            }
+        }
+    }
+
+    /**
+     * Start a producer or consumer thread
+     *
+     * @param runnable   the producer or consumer
+     * @param name   the name of the thread
+     */
+    private void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Return whether the client is still running
+     *
+     * @return false once close has been called
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop answering email and close the mailboxes
+     *
+     * Emails already being answered are finished, replies waiting to be sent
+     * are sent and answered emails are archived before the connections close.
+     */
+    public void close() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        try {
+            for (Thread thread : threads) {
+                if (thread.getName().startsWith("email-consumer")) {
+                    thread.join(CLOSE_TIMEOUT);
+                }
+            }
+            if (answerExecutor != null) {
+                answerExecutor.shutdown();
+                answerExecutor.awaitTermination(CLOSE_TIMEOUT);
+            }
+            sendStage.shutdown();
+            sendStage.awaitTermination(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Mailbox mailbox : mailboxes.values()) {
+            if (mailbox.getSender() != null) {
+                mailbox.getSender().close();
+            }
+            mailbox.getArchiver().close();
+            mailbox.getManager().close();
+        }
+        journal.close();
+        metrics.unregisterMBeans();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+    }
+
+    /**
+     * Pick up the emails the journal shows were not finished by an earlier run
+     *
+     * Emails that were answered are only archived, so they are not answered
+     * twice. Emails that were queued but not answered are fetched again by
+     * UID and queued. An email whose Message-ID no longer matches its UID,
+     * or that has left the inbox, is dropped from the journal.
+     */
+    private void recoverUnfinishedWork() {
+        Map<String, List<WorkJournal.Entry>> unanswered = new LinkedHashMap<String, List<WorkJournal.Entry>>();
+        for (WorkJournal.Entry entry : journal.getRecovered()) {
+            Mailbox mailbox = mailboxes.get(entry.getMailbox());
+            if (mailbox == null) {
+                logger.warn("Journal has unfinished email for unknown mailbox " + entry.getMailbox());
+            } else if (entry.getState() == WorkJournal.State.REPLIED) {
+                mailbox.getArchiver().archive(entry.getUid());
+            } else {
+                if (!unanswered.containsKey(entry.getMailbox())) {
+                    unanswered.put(entry.getMailbox(), new ArrayList<WorkJournal.Entry>());
+                }
+                unanswered.get(entry.getMailbox()).add(entry);
+            }
+        }
+        for (Map.Entry<String, List<WorkJournal.Entry>> entries : unanswered.entrySet()) {
+            Mailbox mailbox = mailboxes.get(entries.getKey());
+            try {
+                requeue(mailbox, entries.getValue());
+            } catch (MessagingException e) {
+                logAndOutputError(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fetch unanswered emails again and queue them
+     *
+     * @param mailbox   the mailbox the emails were read from
+     * @param entries   the journal entries of the emails
+     * @throws MessagingException   if the emails cannot be fetched
+     * @throws InterruptedException   if interrupted while waiting for room in the queue
+     */
+    private void requeue(Mailbox mailbox, List<WorkJournal.Entry> entries)
+                    throws MessagingException, InterruptedException {
+        Map<Long, String> messageIds = new LinkedHashMap<Long, String>();
+        for (WorkJournal.Entry entry : entries) {
+            messageIds.put(entry.getUid(), entry.getMessageId());
+        }
+        long[] uids = new long[messageIds.size()];
+        int n = 0;
+        for (long uid : messageIds.keySet()) {
+            uids[n++] = uid;
+        }
+        EmailMessage[] emails = mailbox.getManager().fetchMessages(FolderType.INBOX, uids);
+        int requeued = 0;
+        for (EmailMessage email : emails) {
+            String messageId = messageIds.remove(email.getUid());
+            String current = email.getMessageId() == null ? "" : email.getMessageId();
+            if (!messageId.equals(current)) {
+                logger.warn("Email " + email.getUid() + " in " + mailbox.getName()
+                                + " is not the one in the journal. Skipping it.");
+                journal.archived(mailbox.getName(), email.getUid());
+                continue;
+            }
+            mailbox.getLimiter().acquire(1);
+            emailQueue.putMessage(email);
+            requeued++;
+        }
+        for (long uid : messageIds.keySet()) {
+            journal.archived(mailbox.getName(), uid);
+        }
+        logger.info("Requeued " + requeued + " unanswered emails for " + mailbox.getName());
+    }
+
     /**
      * Parse String consumerThreads into an integer
      *
@@ -95,12 +491,27 @@ public class EmailClient {
         return consumerThreadCount;
     }
 
+    /**
+     * Read an integer setting that has a default
+     *
+     * @param config   Configuration object
+     * @param key   the configuration key
+     * @param defaultValue   the value to use if the key is not set
+     * @return the value
+     */
+    private int getInt(Config config, String key, int defaultValue) {
+        return config.hasPath(key) ? config.getInt(key) : defaultValue;
+    }
+
     /**
      * Print number of messages in inbox
+     *
+     * @param mailbox   the mailbox to count
      */
-    public void printNumberOfMessages() {
+    public void printNumberOfMessages(Mailbox mailbox) {
         try {
-            System.out.println("\nMessages in Inbox: " + manager.getCount(FolderType.INBOX));
+            System.out.println("\nMessages in " + mailbox.getName() + " Inbox: "
+                            + mailbox.getManager().getCount(FolderType.INBOX));
         } catch (MessagingException e) {
             logAndOutputError(e);
         }
@@ -108,83 +519,317 @@ public class EmailClient {
 
     /**
      * Handle unseen messages
+     *
+     * If the queue is full or the mailbox has used up its share of the
+     * pipeline, waits briefly instead and reports that mail may be waiting.
+     *
+     * @param mailbox   the mailbox to fetch from
+     * @return whether any unseen messages were queued, or fetching was held back
      */
-    public synchronized void handleUnseenMessage() {
+    public boolean handleUnseenMessage(Mailbox mailbox) {
+        MailboxLimiter limiter = mailbox.getLimiter();
+        int limit = Math.min(emailQueue.remainingCapacity(), limiter.available());
+        if (limit == 0) {
+            limiter.awaitRelease(THROTTLE_WAIT);
+            return true;
+        }
         try {
-            if (manager.getCount(FolderType.INBOX) > 0 && hasUnseenMessages()) {
-                emailQueue.putMessage(manager.getUnseenMessage(FolderType.INBOX));
-                manager.markSeen(manager.getUnseenMessage(FolderType.INBOX));
+            int retried = requeueRetries(mailbox);
+            // the emails are journaled before they are marked seen, so one that
+            // is not queued when the client stops is picked up on restart
+            EmailMessage[] messages = mailbox.getManager().fetchNewMessages(FolderType.INBOX, limit,
+                            new EmailManager.FetchListener() {
+                                @Override
+                                public void fetched(EmailMessage[] emails) {
+                                    for (EmailMessage email : emails) {
+                                        journal.enqueued(email);
+                                    }
+                                }
+                            });
+            mailbox.getBackoff().reset();
+            limiter.acquire(messages.length);
+            for (EmailMessage msg : messages) {
+                emailQueue.putMessage(msg);
+            }
+            if (messages.length > 0 || retried > 0) {
+                return true;
             }
-            waitThread();
         } catch (MessagingException e) {
             logAndOutputError(e);
+            backOff(mailbox);
+        } catch (InterruptedException e) {
+            logger.info("Thread was interupted");
+            Thread.currentThread().interrupt();
         }
+        return false;
     }
 
     /**
-     * Returns whether the inbox has unseen messages
+     * Fetch and queue the emails that failed part way through
      *
-     * @return whether the inbox has unseen messages
+     * @param mailbox   the mailbox the emails are in
+     * @return the number of emails queued
+     * @throws MessagingException   if the emails cannot be fetched
+     * @throws InterruptedException   if interrupted while waiting for room in the queue
      */
-    private boolean hasUnseenMessages() {
+    private int requeueRetries(Mailbox mailbox) throws MessagingException, InterruptedException {
+        long[] uids = mailbox.takeRetries();
+        if (uids.length == 0) {
+            return 0;
+        }
+        EmailMessage[] emails;
         try {
-            manager.getUnseenMessage(FolderType.INBOX);
-        } catch (IndexOutOfBoundsException e) {
-            return false;
+            emails = mailbox.getManager().fetchMessages(FolderType.INBOX, uids);
         } catch (MessagingException e) {
-            return true;
+            for (long uid : uids) {
+                giveUpIfRetriedTooOften(mailbox, uid);
+            }
+            throw e;
+        }
+        mailbox.getLimiter().acquire(emails.length);
+        for (EmailMessage email : emails) {
+            emailQueue.putMessage(email);
+        }
+        logger.info("Requeued " + emails.length + " emails for " + mailbox.getName() + " after a failure");
+        return emails.length;
+    }
+
+    /**
+     * Wait before trying the mail server again
+     *
+     * @param mailbox   the mailbox whose server failed
+     */
+    private void backOff(Mailbox mailbox) {
+        try {
+            mailbox.getBackoff().sleep();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Release an email that failed part way through so it is fetched and answered again
+     *
+     * @param mailbox   the mailbox the email is in
+     * @param email   the email
+     * @param exception   why it failed
+     */
+    private void retryLater(Mailbox mailbox, EmailMessage email, MessagingException exception) {
+        logAndOutputError(exception);
+        mailbox.getManager().releaseClaim(email.getUid());
+        giveUpIfRetriedTooOften(mailbox, email.getUid());
+    }
+
+    /**
+     * Remember an email to fetch again, unless it has failed too often
+     *
+     * An email that is given up on stays in the inbox and the journal, so
+     * it is tried again when the client restarts.
+     *
+     * @param mailbox   the mailbox the email is in
+     * @param uid   the UID of the email
+     */
+    private void giveUpIfRetriedTooOften(Mailbox mailbox, long uid) {
+        if (!mailbox.retry(uid)) {
+            logger.error("Giving up on email " + uid + " in " + mailbox.getName() + " after repeated failures");
+        }
+    }
+
+    /**
+     * Wait for new mail to arrive in the inbox
+     *
+     * @param mailbox   the mailbox to watch
+     * @param foundMessages   whether the last check of the inbox found new mail
+     */
+    public void waitForNewMessages(Mailbox mailbox, boolean foundMessages) {
+        try {
+            mailbox.getWatcher().awaitNewMessages(foundMessages);
+        } catch (MessagingException e) {
+            logAndOutputError(e);
+            backOff(mailbox);
         }
-        return true;
     }
 
     /**
      * Log and output an error message
      *
+     * The client keeps running. Connections are replaced as they fail and
+     * the work is tried again.
+     *
      * @param exception   the exception thrown
      */
     private void logAndOutputError(MessagingException exception) {
-        logger.error("Failed to process email due to ", exception.getMessage());
-        System.err.println(exception.getMessage() + " Check your network connection. Quitting now.");
-        System.exit(-1);
+        if (!running) {
+            logger.debug("Error while closing", exception);
+            return;
+        }
+        logger.error("Failed to process email", exception);
+        System.err.println(exception.getMessage() + " Check your network connection. Trying again.");
     }
 
     /**
-     * Wait thread
+     * Check whether a send failed because the server rejected the reply
+     *
+     * @param exception   the exception thrown
+     * @return whether the reply was rejected rather than the connection failing
+     */
+    private boolean isRejected(MessagingException exception) {
+        return exception instanceof SendFailedException || exception.getNextException() instanceof SendFailedException;
+    }
+
+    /**
+     * Handle seen message
+     *
+     * Blocks until an email is queued and answers it. In platform mode the
+     * reply is handed to the send stage. In virtual mode the email is handed
+     * to its own virtual thread, which answers it and sends the reply.
      */
-    public void waitThread() {
+    public void handleSeenMessage() {
         try {
-            wait(500);
+            final EmailMessage email = emailQueue.takeMessage();
+            if (answerExecutor == null) {
+                answerOrRetry(email);
+            } else {
+                try {
+                    answerExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                answerOrRetry(email);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                } catch (IllegalStateException e) {
+                    leaveForRestart(email);
+                }
+            }
         } catch (InterruptedException e) {
             logger.info("Thread was interupted");
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Handle seen message
+     * Answer an email, releasing it to be tried again if it cannot be read
+     *
+     * @param email   the email to answer
+     * @throws InterruptedException   if interrupted while waiting for room in the outbound queue
      */
-    public synchronized void handleSeenMessage() {
+    private void answerOrRetry(EmailMessage email) throws InterruptedException {
         try {
-            if (manager.getCount(FolderType.INBOX) > 0 && !emailQueue.isEmpty()) {
-                getAndReplyToEmail();
+            answer(email);
+        } catch (MessagingException e) {
+            Mailbox mailbox = mailboxes.get(email.getMailbox());
+            mailbox.getLimiter().release();
+            retryLater(mailbox, email, e);
+        }
+    }
+
+    /**
+     * Read an email, ask the Dorset application for an answer and send the reply
+     *
+     * @param email   the email to answer
+     * @throws MessagingException   if the email cannot be read
+     * @throws InterruptedException   if interrupted while waiting for room in the outbound queue
+     */
+    private void answer(final EmailMessage email) throws MessagingException, InterruptedException {
+        final Mailbox mailbox = mailboxes.get(email.getMailbox());
+        String text = mailbox.getManager().readEmail(email);
+        final String reply = processMessage(text);
+        if (mailbox.getSender() != null) {
+            mailbox.getSender().send(email, reply);
+            return;
+        }
+        if (answerExecutor != null) {
+            sendReply(mailbox, email, reply);
+            return;
+        }
+        try {
+            sendStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sendReply(mailbox, email, reply);
+                }
+            });
+        } catch (IllegalStateException e) {
+            leaveForRestart(email);
+        }
+    }
+
+    /**
+     * Give up on an email because the client is closing
+     *
+     * The journal still holds the email as queued, so it is fetched and
+     * answered again when the client restarts.
+     *
+     * @param email   the email that was being answered
+     */
+    private void leaveForRestart(EmailMessage email) {
+        Mailbox mailbox = mailboxes.get(email.getMailbox());
+        logger.warn("Client is closing. Email " + email.getUid() + " in " + email.getMailbox()
+                        + " will be answered after a restart.");
+        mailbox.getManager().releaseClaim(email.getUid());
+        mailbox.getLimiter().release();
+    }
+
+    /**
+     * Send a reply and hand the email to the archiver
+     *
+     * @param mailbox   the mailbox the email was read from
+     * @param email   the email being answered
+     * @param reply   the text of the reply
+     */
+    private void sendReply(Mailbox mailbox, EmailMessage email, String reply) {
+        try {
+            mailbox.getManager().sendMessage(reply, email.getMessage());
+            journal.replied(email);
+            mailbox.getArchiver().archive(email);
+            mailbox.succeeded(email.getUid());
+        } catch (MessagingException e) {
+            if (isRejected(e)) {
+                logger.error("Failed to reply to email " + email.getUid() + " in " + email.getMailbox(), e);
+            } else {
+                retryLater(mailbox, email, e);
             }
-            waitThread();
-        } catch (MessagingException  e) {
-            logAndOutputError(e);
+        } finally {
+            mailbox.getLimiter().release();
         }
     }
 
     /**
-     * Get and reply to an email
+     * Record that a batched reply was accepted and hand the email to the archiver
+     *
+     * @param email   the email that was answered
+     */
+    @Override
+    public void sent(EmailMessage email) {
+        Mailbox mailbox = mailboxes.get(email.getMailbox());
+        journal.replied(email);
+        mailbox.getArchiver().archive(email);
+        mailbox.succeeded(email.getUid());
+        mailbox.getLimiter().release();
+    }
+
+    /**
+     * Handle a batched reply that could not be sent
      *
-     * @throws MessagingException   if email could not be processed
+     * A reply the server rejected is logged and its email is left in the
+     * inbox. After any other failure the email is fetched and answered again.
+     *
+     * @param email   the email that was being answered
+     * @param exception   why the reply was not sent
      */
-    private void getAndReplyToEmail() throws MessagingException {
-        emailQueue.removeMessageIfAny();
-        Message msg = manager.getSeenMessage(FolderType.INBOX);
-        String text = manager.readEmail(msg);
-        manager.sendMessage(processMessage(text), msg);
-        manager.copyEmail(FolderType.INBOX, FolderType.COMPLETE, msg);
-        manager.deleteEmail(FolderType.INBOX, msg);
+    @Override
+    public void failed(EmailMessage email, MessagingException exception) {
+        Mailbox mailbox = mailboxes.get(email.getMailbox());
+        mailbox.getLimiter().release();
+        if (isRejected(exception)) {
+            logger.error("Failed to reply to email " + email.getUid() + " in " + email.getMailbox(), exception);
+        } else {
+            retryLater(mailbox, email, new MessagingException("Failed to reply to email", exception));
+        }
     }
 
     /**
@@ -192,10 +837,22 @@ public class EmailClient {
      *
      * @param text   the text sent to a Dorset agent
      * @return reply   the response from a Dorset agent
+     * @throws InterruptedException   if interrupted while waiting for the answer to an identical question
      */
-    private String processMessage(String text) {
-        Request request = new Request(text);
-        Response response = app.process(request);
+    private String processMessage(final String text) throws InterruptedException {
+        long start = System.nanoTime();
+        Response response;
+        if (coalescer != null) {
+            response = coalescer.call(app, text, new Callable<Response>() {
+                @Override
+                public Response call() {
+                    return app.process(new Request(text));
+                }
+            });
+        } else {
+            response = app.process(new Request(text));
+        }
+        metrics.getTimer(EmailMetrics.PROCESS).stop(start);
         String reply = response.getText();
         if (reply == null) {
             logger.info("No response from Dorset Agent to: " + text);
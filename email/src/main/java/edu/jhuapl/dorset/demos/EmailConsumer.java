@@ -33,7 +33,7 @@ public class EmailConsumer implements Runnable {
      * Run consumer thread
      */
     public void run() {
-        while (true) {
+        while (client.isRunning() && !Thread.currentThread().isInterrupted()) {
             client.handleSeenMessage();
         }
     }
@@ -16,26 +16,45 @@
  */
 package edu.jhuapl.dorset.demos;
 
-import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Part;
 import javax.mail.Session;
-import javax.mail.Store;
-import javax.mail.Transport;
+import javax.mail.UIDFolder;
+import javax.mail.event.MessageCountListener;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.SearchTerm;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
 
 import edu.jhuapl.dorset.nlp.Tokenizer;
 import edu.jhuapl.dorset.nlp.WhiteSpaceTokenizer;
@@ -49,55 +68,177 @@ public class EmailManager {
     private static final String MAIL_STORE_TYPE_KEY = "mailStoreType";
     private static final String HOST_KEY = "host";
     private static final String FROM_KEY = "from";
+    private static final String NAME_KEY = "name";
+    private static final String FOLDERS_KEY = "folders";
+    private static final String FETCH_BATCH_SIZE_KEY = "fetchBatchSize";
+    private static final String PREFETCH_MAX_SIZE_KEY = "prefetchMaxSize";
+    private static final int DEFAULT_FETCH_BATCH_SIZE = 20;
+    private static final int DEFAULT_PREFETCH_MAX_SIZE = 1024 * 1024;
+    private static final String BODY_MAX_CHARS_KEY = "bodyMaxChars";
+    private static final int DEFAULT_BODY_MAX_CHARS = 10000;
+    private static final String SMTP_POOL_SIZE_KEY = "smtpPoolSize";
+    private static final String SMTP_KEEP_ALIVE_INTERVAL_KEY = "smtpKeepAliveInterval";
+    private static final int DEFAULT_SMTP_POOL_SIZE = 2;
+    private static final long DEFAULT_SMTP_KEEP_ALIVE_INTERVAL = 30000;
+    private static final String IMAP_POOL_SIZE_KEY = "imapPoolSize";
+    private static final String IMAP_IDLE_TIMEOUT_KEY = "imapIdleTimeout";
+    private static final String IMAP_RECONNECT_ATTEMPTS_KEY = "imapReconnectAttempts";
+    private static final String IMAP_RECONNECT_DELAY_KEY = "imapReconnectDelay";
+    private static final String IMAP_RECONNECT_MAX_DELAY_KEY = "imapReconnectMaxDelay";
+    private static final String IMAP_STANDBY_KEY = "imapStandby";
+    private static final int DEFAULT_IMAP_POOL_SIZE = 2;
+    private static final long DEFAULT_IMAP_IDLE_TIMEOUT = 300000;
+    private static final int DEFAULT_IMAP_RECONNECT_ATTEMPTS = 3;
+    private static final long DEFAULT_IMAP_RECONNECT_DELAY = 1000;
+    private static final long DEFAULT_IMAP_RECONNECT_MAX_DELAY = 30000;
+    private static final String IDLE_RENEW_INTERVAL_KEY = "idleRenewInterval";
+    private static final long DEFAULT_IDLE_RENEW_INTERVAL = 300000;
 
     private String username;
     private String password;
     private String mailStoreType;
     private String host;
     private String from;
+    private String name;
+    private Map<FolderType, String> folderNames = new EnumMap<FolderType, String>(FolderType.class);
+    private int fetchBatchSize;
+    private int prefetchMaxSize;
+    private BodyTextExtractor bodyExtractor;
+    private EmailMetrics metrics;
+    private long idleRenewInterval;
 
     private Session session;
-    private Store store;
-    private Folder inboxFolder;
-    private Folder errorFolder;
-    private Folder completeFolder;
-    private static final String SMTP = "smtp";
-    private static final String ENCAPSULATED = "message/rfc822";
-    private static final String TEXT_PLAIN = "text/plain";
-    private static final String MULTIPART = "multipart/*";
+    private SmtpTransportPool smtpPool;
+    private ImapConnectionPool imapPool;
+    private volatile ImapConnection watchConnection;
+    private ScheduledExecutorService idleTimer;
+    private Map<MessageCountListener, FolderType> countListeners = new LinkedHashMap<MessageCountListener, FolderType>();
+    private volatile boolean closed;
+    private Set<Long> claimedUids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private Map<FolderType, Long> uidValidities = new EnumMap<FolderType, Long>(FolderType.class);
+    private Map<FolderType, Long> lastUids = new EnumMap<FolderType, Long>(FolderType.class);
+    // held while a pooled connection uses message numbers or expunges, since
+    // some servers renumber every connection as soon as one of them expunges
+    private final Object numberingLock = new Object();
+    private static final String IDLE = "IDLE";
+    private static final String MOVE = "MOVE";
+    private static final String UIDPLUS = "UIDPLUS";
+    private static final SearchTerm UNSEEN = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
 
     /**
     * EmailManager Constructor.
     *
     * The close method must be called on every EmailManager object before exiting an application
     *
+    * IMAP work is spread over a pool of connections, each with its own opened
+    * inbox. A separate connection is kept for watching the inbox. Emails are
+    * claimed by UID when they are fetched, so no two connections handle the
+    * same email. Message numbers are only used on a connection after it has
+    * caught up with the EXPUNGEs of the others, and never while another
+    * connection is expunging.
+    *
+    * The folders used for each FolderType can be renamed in a folders block,
+    * for example folders { complete = "Answered" }.
+    *
     * @param config  Configuration object that stores mail server information, username, and password
+    * @param metrics   the metrics to record the account's mail server work in
     * @throws MessagingException   if connection cannot be established
     */
-    public EmailManager(Config config) throws MessagingException {
-        
+    public EmailManager(Config config, EmailMetrics metrics) throws MessagingException {
+        this(config, metrics, null);
+    }
+
+    /**
+     * Create an EmailManager that writes the JavaMail debug output to a stream
+     *
+     * @param config   Configuration object that stores mail server information, username, and password
+     * @param metrics   the metrics to record the account's mail server work in
+     * @param debugOut   where the debug output goes when mail.debug is set, or null for System.out
+     * @throws MessagingException   if connection cannot be established
+     */
+    public EmailManager(Config config, EmailMetrics metrics, PrintStream debugOut) throws MessagingException {
+        this.metrics = metrics;
         username = config.getString(USERNAME_KEY);
         password = config.getString(PASSWORD_KEY);
         mailStoreType = config.getString(MAIL_STORE_TYPE_KEY);
         host = config.getString(HOST_KEY); 
         from = config.getString(FROM_KEY);
+        name = config.hasPath(NAME_KEY) ? config.getString(NAME_KEY) : username;
+        for (FolderType type : FolderType.values()) {
+            String key = FOLDERS_KEY + "." + type.name().toLowerCase();
+            folderNames.put(type, config.hasPath(key) ? config.getString(key) : type.getValue());
+        }
+        fetchBatchSize = getInt(config, FETCH_BATCH_SIZE_KEY, DEFAULT_FETCH_BATCH_SIZE);
+        prefetchMaxSize = getInt(config, PREFETCH_MAX_SIZE_KEY, DEFAULT_PREFETCH_MAX_SIZE);
+        bodyExtractor = new BodyTextExtractor(getInt(config, BODY_MAX_CHARS_KEY, DEFAULT_BODY_MAX_CHARS));
+        idleRenewInterval = getLong(config, IDLE_RENEW_INTERVAL_KEY, DEFAULT_IDLE_RENEW_INTERVAL);
         Properties prop = extractProperties(config);
-        session = Session.getDefaultInstance(prop);
-        store = session.getStore(mailStoreType);
+        String timeoutKey = "mail." + mailStoreType + ".timeout";
+        if (!prop.containsKey(timeoutKey)) {
+            // a watch connection that died during IDLE fails its read instead of blocking forever
+            prop.setProperty(timeoutKey, String.valueOf(2 * idleRenewInterval));
+        }
+        session = Session.getInstance(prop);
+        if (debugOut != null) {
+            session.setDebugOut(debugOut);
+        }
+        smtpPool = new SmtpTransportPool(session, username, password,
+                        getInt(config, SMTP_POOL_SIZE_KEY, DEFAULT_SMTP_POOL_SIZE),
+                        getLong(config, SMTP_KEEP_ALIVE_INTERVAL_KEY, DEFAULT_SMTP_KEEP_ALIVE_INTERVAL), metrics);
+        imapPool = new ImapConnectionPool(session, mailStoreType, host, username, password, folderNames,
+                        getInt(config, IMAP_POOL_SIZE_KEY, DEFAULT_IMAP_POOL_SIZE),
+                        getLong(config, IMAP_IDLE_TIMEOUT_KEY, DEFAULT_IMAP_IDLE_TIMEOUT),
+                        getInt(config, IMAP_RECONNECT_ATTEMPTS_KEY, DEFAULT_IMAP_RECONNECT_ATTEMPTS),
+                        getLong(config, IMAP_RECONNECT_DELAY_KEY, DEFAULT_IMAP_RECONNECT_DELAY),
+                        getLong(config, IMAP_RECONNECT_MAX_DELAY_KEY, DEFAULT_IMAP_RECONNECT_MAX_DELAY),
+                        !config.hasPath(IMAP_STANDBY_KEY) || config.getBoolean(IMAP_STANDBY_KEY), metrics);
+        idleTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "imap-idle-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         try {
-            store.connect(host, username, password);
+            watchConnection = imapPool.open();
         } catch (MessagingException e) {
+            idleTimer.shutdownNow();
             throw new MessagingException("Failed to set up imap connection. Check your network connection and account/server configurations.", e);
         }
         try {
             initFolders();
-            inboxFolder.open(Folder.READ_WRITE);
         } catch (MessagingException e) {
-            store.close();
+            idleTimer.shutdownNow();
+            watchConnection.close();
             throw new MessagingException("Failed to initialize and open folder");
         }
     }
     
+    /**
+     * Read an integer setting that has a default
+     *
+     * @param config   Configuration object
+     * @param key   the configuration key
+     * @param defaultValue   the value to use if the key is not set
+     * @return the value
+     */
+    private static int getInt(Config config, String key, int defaultValue) {
+        return config.hasPath(key) ? config.getInt(key) : defaultValue;
+    }
+
+    /**
+     * Read a long setting that has a default
+     *
+     * @param config   Configuration object
+     * @param key   the configuration key
+     * @param defaultValue   the value to use if the key is not set
+     * @return the value
+     */
+    private static long getLong(Config config, String key, long defaultValue) {
+        return config.hasPath(key) ? config.getLong(key) : defaultValue;
+    }
+
     /**
      * Extract properties from configuration object
      *
@@ -107,44 +248,133 @@ public class EmailManager {
     private Properties extractProperties(Config config) {
         Properties prop = new Properties();
         for (java.util.Map.Entry<java.lang.String, ConfigValue> entry : config.entrySet()) {
-            prop.setProperty(entry.getKey(), config.getString(entry.getKey()));
+            // lists such as the mailboxes list are not mail properties
+            if (entry.getValue().valueType() != ConfigValueType.LIST) {
+                prop.setProperty(entry.getKey(), config.getString(entry.getKey()));
+            }
         }
         return prop;
     }
 
     /**
-     * Get folders and create them if they do not already exist
+     * Get the name of the account
+     *
+     * @return the name set in the configuration, or the username
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Create folders if they do not already exist
      *
      * @throws MessagingException   if folders cannot be initialized
      */
     private void initFolders() throws MessagingException {
-        if (!store.getFolder(FolderType.ERROR.getValue()).exists()) {
-            store.getFolder(FolderType.ERROR.getValue()).create(Folder.HOLDS_MESSAGES);
+        if (!watchConnection.getFolder(FolderType.ERROR).exists()) {
+            watchConnection.getFolder(FolderType.ERROR).create(Folder.HOLDS_MESSAGES);
+        }
+        if (!watchConnection.getFolder(FolderType.COMPLETE).exists()) {
+            watchConnection.getFolder(FolderType.COMPLETE).create(Folder.HOLDS_MESSAGES);
         }
-        if (!store.getFolder(FolderType.COMPLETE.getValue()).exists()) {
-            store.getFolder(FolderType.COMPLETE.getValue()).create(Folder.HOLDS_MESSAGES);
+    }
+
+    /**
+     * Return whether the mail server supports the IMAP IDLE command
+     *
+     * @return whether the mail server supports IDLE
+     */
+    public boolean supportsIdle() {
+        try {
+            return watchConnection.getStore().hasCapability(IDLE);
+        } catch (MessagingException e) {
+            logger.error("Failed to read mail server capabilities", e);
+            return false;
+        }
+    }
+
+    /**
+     * Register a listener for messages added to or removed from a folder
+     *
+     * @param folder   the folder to listen to
+     * @param listener   the listener to be notified
+     */
+    public synchronized void addMessageCountListener(FolderType folder, MessageCountListener listener) {
+        countListeners.put(listener, folder);
+        watchConnection.getFolder(folder).addMessageCountListener(listener);
+    }
+
+    /**
+     * Block in IMAP IDLE until the server reports a change to a folder
+     *
+     * This uses the watch connection, so it does not hold up work on the
+     * pooled connections. The IDLE is ended with a NOOP after
+     * idleRenewInterval milliseconds, before servers and firewalls drop a
+     * quiet connection, and this returns so the caller checks the folder
+     * and idles again. If the watch connection has failed, it is replaced
+     * and this returns so the caller checks for mail missed in the meantime.
+     *
+     * @param folder   the folder to idle on
+     * @throws MessagingException   if the watch connection cannot be replaced
+     */
+    public void idle(final FolderType folder) throws MessagingException {
+        final ImapConnection conn = watchConnection;
+        ScheduledFuture<?> renewal = idleTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    conn.noop(folder);
+                } catch (MessagingException e) {
+                    // the idling thread sees the failure too
+                    logger.debug("Failed to end IDLE on " + folder + " folder", e);
+                } catch (IllegalStateException e) {
+                    logger.debug(folder + " folder was closed before IDLE was renewed", e);
+                }
+            }
+        }, idleRenewInterval, TimeUnit.MILLISECONDS);
+        try {
+            conn.getFolder(folder).idle(true);
+        } catch (IllegalStateException e) {
+            if (closed) {
+                logger.debug(folder + " folder was closed before idling");
+            } else {
+                logger.warn(folder + " folder was closed by the server. Reconnecting.");
+                metrics.failure(folder);
+                reconnectWatch();
+            }
+        } catch (MessagingException e) {
+            if (closed) {
+                return;
+            }
+            logger.warn("Failed to idle on " + folder + " folder. Reconnecting.", e);
+            metrics.failure(folder);
+            reconnectWatch();
+        } finally {
+            renewal.cancel(false);
         }
-        inboxFolder = store.getFolder(FolderType.INBOX.getValue());
-        errorFolder = store.getFolder(FolderType.ERROR.getValue());
-        completeFolder = store.getFolder(FolderType.COMPLETE.getValue());
     }
 
     /**
-     * Get a folder
+     * Replace the watch connection, using the standby connection if there is one
+     *
+     * Message count listeners are moved to the new connection. The UIDs of
+     * the emails already fetched are kept, so fetching carries on from the
+     * last email fetched before the failure.
      *
-     * @param folder   the folder to be returned
-     * @return the folder to be accessed
+     * @throws MessagingException   if a new connection cannot be opened
      */
-    private Folder getFolder(FolderType folder) {
-        switch (folder) {
-            case ERROR:
-                return errorFolder;
-            case COMPLETE:
-                return completeFolder;
-            case INBOX:
-            default:
-                return inboxFolder;
+    private synchronized void reconnectWatch() throws MessagingException {
+        ImapConnection failed = watchConnection;
+        try {
+            watchConnection = imapPool.open();
+        } catch (MessagingException e) {
+            throw new MessagingException("Failed to reconnect to " + host, e);
+        }
+        for (Map.Entry<MessageCountListener, FolderType> entry : countListeners.entrySet()) {
+            watchConnection.getFolder(entry.getValue()).addMessageCountListener(entry.getKey());
         }
+        failed.close();
+        logger.info("Reconnected watch connection for " + name);
     }
 
     /**
@@ -154,116 +384,361 @@ public class EmailManager {
      * @return the number of emails left in the folder
      * @throws MessagingException   if folder contents cannot be accessed
      */
-    public synchronized int getCount(FolderType folder) throws MessagingException {
+    public int getCount(FolderType folder) throws MessagingException {
+        ImapConnection conn = imapPool.lease();
         try {
-            return getFolder(folder).getMessageCount();
+            return conn.getFolder(folder).getMessageCount();
         } catch (MessagingException e) {
+            metrics.failure(folder);
             throw new MessagingException("Failed to access " + folder + " folder contents", e);
+        } finally {
+            imapPool.release(conn);
+        }
+    }
+
+    /**
+     * Get the unseen emails that arrived in a folder since the last call
+     *
+     * Only messages with a UID above the last one returned are searched, so
+     * each call is a UID FETCH and a server-side SEARCH UNSEEN over the new
+     * messages rather than a walk of the whole folder. If the folder's
+     * UIDVALIDITY changes, the whole folder is searched again. The returned
+     * emails are claimed by UID.
+     *
+     * @param conn   the connection to use
+     * @param folder   the folder to retrieve emails from
+     * @param maxMessages   the maximum number of emails to return
+     * @return the new unseen emails in UID order, possibly empty
+     * @throws MessagingException   if emails cannot be retrieved
+     */
+    private Message[] getNewUnseenMessages(ImapConnection conn, FolderType folder, int maxMessages)
+                    throws MessagingException {
+        try {
+            IMAPFolder uidFolder = conn.getFolder(folder);
+            long uidValidity = uidFolder.getUIDValidity();
+            Long knownValidity = uidValidities.get(folder);
+            if (knownValidity == null || knownValidity != uidValidity) {
+                uidValidities.put(folder, uidValidity);
+                lastUids.put(folder, 0L);
+            }
+            long lastUid = lastUids.get(folder);
+
+            Message[] unseen;
+            if (lastUid == 0) {
+                unseen = uidFolder.search(UNSEEN);
+            } else {
+                Message[] newer = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+                unseen = newer.length == 0 ? newer : uidFolder.search(UNSEEN, newer);
+            }
+
+            List<Message> batch = new ArrayList<Message>();
+            for (Message msg : unseen) {
+                // UID n:* always includes the last message, even when its UID is below n
+                long uid = uidFolder.getUID(msg);
+                if (uid > lastUid && !claimedUids.contains(uid)) {
+                    batch.add(msg);
+                }
+            }
+            if (batch.size() > maxMessages) {
+                batch = batch.subList(0, Math.max(maxMessages, 0));
+            }
+            for (Message msg : batch) {
+                claimedUids.add(uidFolder.getUID(msg));
+            }
+            if (!batch.isEmpty()) {
+                lastUids.put(folder, uidFolder.getUID(batch.get(batch.size() - 1)));
+            }
+            return batch.toArray(new Message[batch.size()]);
+        } catch (MessagingException e) {
+            throw new MessagingException("Failed to retrieve emails from " + folder + " folder", e);
         }
     }
 
     /**
-     * Get a seen email from a folder
+     * Mark emails as seen
      *
-     * @param folder   the folder to retrieve an email from
-     * @return the email
-     * @throws MessagingException   if email cannot be retrieved
+     * @param conn   the connection the emails were retrieved with
+     * @param folder   the folder containing the emails
+     * @param msgs  the emails to be marked seen
+     * @throws MessagingException   if emails cannot be properly marked
      */
-    public synchronized Message getSeenMessage(FolderType folder) throws MessagingException {
+    private void markSeen(ImapConnection conn, FolderType folder, Message[] msgs) throws MessagingException {
+        if (msgs.length == 0) {
+            return;
+        }
         try {
-            return getFolder(folder).getMessage(1);
+            conn.getFolder(folder).setFlags(msgs, new Flags(Flags.Flag.SEEN), true);
         } catch (MessagingException e) {
-            throw new MessagingException("Failed to retrieve email from " + folder + " folder", e);
-        }  
+            throw new MessagingException("Failed to mark emails as seen", e);
+        }
     }
 
     /**
-     * Get an unseen email from a folder
+     * Told about new emails before they are marked seen
+     */
+    public interface FetchListener {
+        /**
+         * New emails were fetched
+         *
+         * Once this returns, the emails are marked seen on the server and
+         * will not be found by a search for unseen mail again, so anything
+         * needed to recover them must be recorded here. If this throws, the
+         * emails are not marked seen and are fetched again by a later call.
+         *
+         * @param emails   the emails
+         */
+        void fetched(EmailMessage[] emails);
+    }
+
+    /**
+     * Fetch the unseen emails that arrived in a folder since the last call
+     *
+     * The envelope, headers, flags and size of the whole batch are fetched in
+     * one FETCH command, followed by one more for the full content of every
+     * email no larger than prefetchMaxSize. The listener is told about the
+     * emails, then they are marked seen on the server and returned detached
+     * from the folder.
      *
-     * @param folder   the folder to retrieve an email from
-     * @return the email
-     * @throws MessagingException   if email cannot be retrieved
-     * @throws IndexOutOfBoundsException   if there are no unseen emails
+     * @param folder   the folder to retrieve emails from
+     * @param maxMessages   the maximum number of emails to return
+     * @param listener   the listener told about the emails before they are marked seen
+     * @return the new unseen emails in UID order, possibly empty
+     * @throws MessagingException   if emails cannot be retrieved
      */
-    public synchronized Message getUnseenMessage(FolderType folder) throws IndexOutOfBoundsException, MessagingException {
-        try {    
-            int count = 1;
-            Message msg = getFolder(folder).getMessage(count);
-            while (msg.isSet(Flags.Flag.SEEN)) {
-                count++;
-                if (count > getFolder(folder).getMessageCount()) {
-                    throw new IndexOutOfBoundsException("There were no unseen messages in " + folder + " folder");
-                }
-                msg = getFolder(folder).getMessage(count);
+    public synchronized EmailMessage[] fetchNewMessages(FolderType folder, int maxMessages, FetchListener listener)
+                    throws MessagingException {
+        long start = System.nanoTime();
+        ImapConnection conn = imapPool.lease();
+        try {
+            EmailMessage[] emails;
+            synchronized (numberingLock) {
+                conn.sync(folder);
+                emails = fetchNewMessages(conn, folder, maxMessages, listener);
             }
-            return msg;
-        } catch (IndexOutOfBoundsException e) {
-            throw new IndexOutOfBoundsException("There were no unseen messages in " + folder + " folder");
+            metrics.fetched(emails.length);
+            return emails;
         } catch (MessagingException e) {
-            throw new MessagingException("Failed to retrieve email from " + folder + " folder", e);
-        } 
+            metrics.failure(folder);
+            throw e;
+        } finally {
+            imapPool.release(conn);
+            metrics.getTimer(EmailMetrics.FETCH).stop(start);
+        }
     }
 
     /**
-     * Mark an email as seen
+     * Fetch the unseen emails that arrived in a folder since the last call
      *
-     * @param msg  the email to be marked seen
-     * @throws MessagingException   if email cannot be properly marked
+     * @param conn   the connection to use
+     * @param folder   the folder to retrieve emails from
+     * @param maxMessages   the maximum number of emails to return
+     * @param listener   the listener told about the emails before they are marked seen
+     * @return the new unseen emails in UID order, possibly empty
+     * @throws MessagingException   if emails cannot be retrieved
      */
-    public synchronized void markSeen(Message msg) throws MessagingException {
+    private EmailMessage[] fetchNewMessages(ImapConnection conn, FolderType folder, int maxMessages,
+                    FetchListener listener) throws MessagingException {
+        Long lastUid = lastUids.get(folder);
+        Long uidValidity = uidValidities.get(folder);
+        Message[] msgs = getNewUnseenMessages(conn, folder, Math.min(maxMessages, fetchBatchSize));
+        EmailMessage[] emails;
+        boolean recorded = false;
         try {
-            msg.setFlag(Flags.Flag.SEEN, true);
+            emails = fetchMessages(conn, folder, msgs);
+            if (emails.length > 0) {
+                listener.fetched(emails);
+            }
+            recorded = true;
+        } finally {
+            if (!recorded) {
+                // the emails were not fetched or recorded, so the next call starts from the same place
+                releaseClaims(conn, folder, msgs);
+                boolean sameValidity = uidValidity != null && uidValidity.equals(uidValidities.get(folder));
+                lastUids.put(folder, sameValidity ? lastUid : 0L);
+            }
+        }
+        try {
+            markSeen(conn, folder, msgs);
         } catch (MessagingException e) {
-            throw new MessagingException("Failed to mark email as seen", e);
+            // the listener has recorded the emails, so they are answered anyway
+            logger.warn("Failed to mark " + msgs.length + " emails seen in " + folder + " folder", e);
         }
+        return emails;
     }
 
     /**
-     * Retrieve and return text from an email
+     * Fetch emails by UID, whether or not they have been seen
      *
-     * @param msg   the email to be read
-     * @return the text of an email
-     * @throws MessagingException   if email cannot be accessed
+     * Used to pick up emails that were queued but not answered before the
+     * client stopped. Emails that are no longer in the folder, or that are
+     * already claimed, are left out.
+     *
+     * @param folder   the folder to retrieve emails from
+     * @param uids   the UIDs of the emails
+     * @return the emails that were found, in UID order
+     * @throws MessagingException   if emails cannot be retrieved
      */
-    public String readEmail(Message msg) throws MessagingException {
-        Tokenizer tokenizer = new WhiteSpaceTokenizer();
-        if (msg.getSubject() == null) {
-            return getBodyText(msg);
+    public synchronized EmailMessage[] fetchMessages(FolderType folder, long[] uids) throws MessagingException {
+        ImapConnection conn = imapPool.lease();
+        try {
+            synchronized (numberingLock) {
+                conn.sync(folder);
+                return fetchMessages(conn, folder, uids);
+            }
+        } catch (MessagingException e) {
+            metrics.failure(folder);
+            throw new MessagingException("Failed to retrieve emails from " + folder + " folder", e);
+        } finally {
+            imapPool.release(conn);
         }
-        String subject = msg.getSubject().toUpperCase();
-        String[] subjectTokenized = tokenizer.tokenize(subject);
-        if (subject.contains("RE: ") || subjectTokenized.length <= 1) {
-            return getBodyText(msg);
-        } else {
-            return subject;
+    }
+
+    /**
+     * Fetch emails by UID, whether or not they have been seen
+     *
+     * @param conn   the connection to use
+     * @param folder   the folder to retrieve emails from
+     * @param uids   the UIDs of the emails
+     * @return the emails that were found, in UID order
+     * @throws MessagingException   if emails cannot be retrieved
+     */
+    private EmailMessage[] fetchMessages(ImapConnection conn, FolderType folder, long[] uids)
+                    throws MessagingException {
+        IMAPFolder uidFolder = conn.getFolder(folder);
+        List<Message> found = new ArrayList<Message>();
+        for (Message msg : uidFolder.getMessagesByUID(uids)) {
+            if (msg != null && claimedUids.add(uidFolder.getUID(msg))) {
+                found.add(msg);
+            }
         }
+        Message[] msgs = found.toArray(new Message[found.size()]);
+        EmailMessage[] emails;
+        try {
+            emails = fetchMessages(conn, folder, msgs);
+        } catch (MessagingException e) {
+            releaseClaims(conn, folder, msgs);
+            throw e;
+        }
+        // these emails are already in the journal
+        markSeen(conn, folder, msgs);
+        metrics.fetched(emails.length);
+        return emails;
     }
 
     /**
-     * Get the text of an email body
+     * Fetch the content of claimed emails and detach them from the folder
      *
-     * @param part   the email body to be retrieved
-     * @return text  the text of the email
-     * @throws MessagingException   if email body cannot be retrieved
+     * @param conn   the connection the emails were retrieved with
+     * @param folder   the folder containing the emails
+     * @param msgs   the emails
+     * @return the detached emails
+     * @throws MessagingException   if emails cannot be fetched
      */
-    private String getBodyText(Part part) throws MessagingException {
+    private EmailMessage[] fetchMessages(ImapConnection conn, FolderType folder, Message[] msgs)
+                    throws MessagingException {
+        if (msgs.length == 0) {
+            return new EmailMessage[0];
+        }
         try {
-            String text = "";
-            if (part.isMimeType(TEXT_PLAIN)) {
-                text += ((String) part.getContent());
-            } else if (part.isMimeType(MULTIPART)) {
-                Multipart mp = (Multipart) part.getContent();
-                int count = mp.getCount();
-                for (int n = 0; n < count; n++) {
-                    text += (getBodyText(mp.getBodyPart(n)));
+            FetchProfile profile = new FetchProfile();
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            profile.add(FetchProfile.Item.ENVELOPE);
+            profile.add(FetchProfile.Item.FLAGS);
+            profile.add(FetchProfile.Item.SIZE);
+            profile.add(FetchProfile.Item.CONTENT_INFO);
+            profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+            conn.getFolder(folder).fetch(msgs, profile);
+
+            List<Message> small = new ArrayList<Message>();
+            for (Message msg : msgs) {
+                if (msg.getSize() >= 0 && msg.getSize() <= prefetchMaxSize) {
+                    small.add(msg);
                 }
-            } else if (part.isMimeType(ENCAPSULATED)) {
-                text += getBodyText((Part) part.getContent());
             }
-            logger.info("email reads: " + text);
-            return text;
-        } catch (MessagingException | IOException e) {
-            throw new MessagingException("Failed to read email body", e);
+            if (!small.isEmpty()) {
+                FetchProfile contentProfile = new FetchProfile();
+                contentProfile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+                conn.getFolder(folder).fetch(small.toArray(new Message[small.size()]), contentProfile);
+            }
+
+            UIDFolder uidFolder = conn.getFolder(folder);
+            StageTimer parseTimer = metrics.getTimer(EmailMetrics.PARSE);
+            EmailMessage[] emails = new EmailMessage[msgs.length];
+            for (int n = 0; n < msgs.length; n++) {
+                long start = System.nanoTime();
+                String bodyText = bodyExtractor.extract(msgs[n]);
+                parseTimer.stop(start);
+                emails[n] = new EmailMessage(name, uidFolder.getUID(msgs[n]), detachHeaders(msgs[n]),
+                                bodyText, msgs[n].getSize());
+            }
+            return emails;
+        } catch (MessagingException e) {
+            throw new MessagingException("Failed to fetch emails from " + folder + " folder", e);
+        }
+    }
+
+    /**
+     * Give up the claim on an email so it can be fetched again by UID
+     *
+     * @param uid   the UID of the email
+     */
+    public void releaseClaim(long uid) {
+        claimedUids.remove(uid);
+    }
+
+    /**
+     * Give up the claim on emails that could not be fetched
+     *
+     * @param conn   the connection the emails were retrieved with
+     * @param folder   the folder containing the emails
+     * @param msgs   the emails
+     */
+    private void releaseClaims(ImapConnection conn, FolderType folder, Message[] msgs) {
+        for (Message msg : msgs) {
+            try {
+                claimedUids.remove(conn.getFolder(folder).getUID(msg));
+            } catch (MessagingException e) {
+                logger.debug("Failed to read UID of unfetched email", e);
+            } catch (NoSuchElementException e) {
+                logger.debug("Unfetched email is no longer in the " + folder + " folder", e);
+            }
+        }
+    }
+
+    /**
+     * Copy the headers of an email into a message that is not attached to a folder
+     *
+     * @param msg   the email to copy
+     * @return the detached copy
+     * @throws MessagingException   if the headers cannot be read
+     */
+    private MimeMessage detachHeaders(Message msg) throws MessagingException {
+        MimeMessage detached = new MimeMessage(session);
+        Enumeration<?> lines = ((MimeMessage) msg).getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            detached.addHeaderLine((String) lines.nextElement());
+        }
+        return detached;
+    }
+
+    /**
+     * Retrieve and return text from an email
+     *
+     * @param email   the email to be read
+     * @return the text of an email
+     * @throws MessagingException   if email headers cannot be decoded
+     */
+    public String readEmail(EmailMessage email) throws MessagingException {
+        Tokenizer tokenizer = new WhiteSpaceTokenizer();
+        if (email.getSubject() == null) {
+            return email.getBodyText();
+        }
+        String subject = email.getSubject().toUpperCase();
+        String[] subjectTokenized = tokenizer.tokenize(subject);
+        if (subject.contains("RE: ") || subjectTokenized.length <= 1) {
+            return email.getBodyText();
+        } else {
+            return subject;
         }
     }
 
@@ -275,73 +750,141 @@ public class EmailManager {
      * @throws MessagingException   if reply cannot be sent
      */
     public void sendMessage(String response, Message msg) throws MessagingException {
+        long start = System.nanoTime();
         try {
-            logger.info("response reads: " + response);
-            Message replyMsg = (MimeMessage) msg.reply(false);
-            replyMsg.setFrom(new InternetAddress(from));
-            replyMsg.setText(response);
-            replyMsg.setReplyTo(msg.getReplyTo());
-
-            if (msg.getSubject() != null && !msg.getSubject().toUpperCase().contains("RE: ")) {
-                replyMsg.setSubject("Re: " + replyMsg.getSubject());
-            } else {
-                replyMsg.setSubject(msg.getSubject());
-            }
-            Transport transport = session.getTransport(SMTP);
-            try {
-                transport.connect(username, password);
-                transport.sendMessage(replyMsg, replyMsg.getAllRecipients());
-            } finally {
-                transport.close();
-            }
+            smtpPool.send(createReply(response, msg));
+            metrics.replied(1);
         } catch (MessagingException e) {
             throw new MessagingException("Failed to reply to email", e);
+        } finally {
+            metrics.getTimer(EmailMetrics.SEND).stop(start);
         }
     }
 
     /**
-     * Copy an email from one folder to another
+     * Send several replies back to back over one SMTP connection
      *
-     * @param fromFolder   the folder the email is currently located in
-     * @param toFolder   the folder the email is going to be moved to
-     * @param msg   the email to be moved
-     * @throws MessagingException   if email cannot be copied
+     * @param replies   the replies created with createReply
+     * @return the failure for each reply, or null where the server accepted it
      */
-    public void copyEmail(FolderType fromFolder, FolderType toFolder, Message msg) throws MessagingException {
-        try {
-            Message[] messages = {msg};
-            getFolder(fromFolder).copyMessages(messages, getFolder(toFolder));
-        } catch (MessagingException e) {
-            throw new MessagingException("Failed to copy email from " + fromFolder + " to " + toFolder, e);
+    public MessagingException[] sendReplies(Message[] replies) {
+        long start = System.nanoTime();
+        MessagingException[] failures = smtpPool.sendBatch(replies);
+        metrics.getTimer(EmailMetrics.SEND).stop(start);
+        int accepted = 0;
+        for (MessagingException failure : failures) {
+            if (failure == null) {
+                accepted++;
+            }
         }
+        metrics.replied(accepted);
+        return failures;
     }
 
     /**
-     * Delete an email from a folder
+     * Create a reply to an email
      *
-     * @param folder   the folder the email should be deleted from
-     * @param msg   the email to be deleted
+     * @param response   the text to be used for the body of the reply
+     * @param msg  the email to be responded to
+     * @return the reply
+     * @throws MessagingException   if reply cannot be created
      */
-    public void deleteEmail(FolderType folder, Message msg) {
-        try {
-            msg.setFlag(Flags.Flag.DELETED, true);
-            getFolder(folder).expunge();
-            getFolder(folder).close(false);
-            getFolder(folder).open(Folder.READ_WRITE);
-        } catch (MessagingException e) {
-            logger.error("Failed to delete email from " + folder + " folder", e);
+    public Message createReply(String response, Message msg) throws MessagingException {
+        logger.info("response reads: " + response);
+        Message replyMsg = (MimeMessage) msg.reply(false);
+        replyMsg.setFrom(new InternetAddress(from));
+        replyMsg.setText(response);
+        replyMsg.setReplyTo(msg.getReplyTo());
+
+        if (msg.getSubject() != null && !msg.getSubject().toUpperCase().contains("RE: ")) {
+            replyMsg.setSubject("Re: " + replyMsg.getSubject());
+        } else {
+            replyMsg.setSubject(msg.getSubject());
         }
+        return replyMsg;
     }
 
     /**
-     * Close the inbox folder and store
+     * Move emails from one folder to another
+     *
+     * Uses IMAP MOVE when the server supports it. Otherwise the emails are
+     * copied, flagged deleted and removed with UID EXPUNGE, or with a plain
+     * EXPUNGE if the server does not support UIDPLUS. The folder is never
+     * closed, and no other connection uses message numbers while the emails
+     * are moved. Moved emails are no longer claimed.
+     *
+     * @param fromFolder   the folder the emails are currently located in
+     * @param toFolder   the folder the emails are going to be moved to
+     * @param uids   the UIDs of the emails to be moved
+     * @return the number of emails moved
+     * @throws MessagingException   if emails cannot be moved
      */
-    public void close() {
+    public int moveEmails(FolderType fromFolder, FolderType toFolder, long[] uids) throws MessagingException {
+        long start = System.nanoTime();
+        ImapConnection conn = imapPool.lease();
         try {
-            inboxFolder.close(false);
-            store.close();
+            IMAPFolder source = conn.getFolder(fromFolder);
+            Message[] messages;
+            synchronized (numberingLock) {
+                conn.sync(fromFolder);
+                List<Message> found = new ArrayList<Message>();
+                for (Message msg : source.getMessagesByUID(uids)) {
+                    if (msg != null) {
+                        found.add(msg);
+                    }
+                }
+                messages = found.toArray(new Message[found.size()]);
+                if (messages.length > 0) {
+                    moveMessages(conn, source, messages, conn.getFolder(toFolder));
+                }
+            }
+            for (long uid : uids) {
+                claimedUids.remove(uid);
+            }
+            metrics.archived(messages.length);
+            return messages.length;
         } catch (MessagingException e) {
-            logger.error("Failed to close folders and store");
+            metrics.failure(fromFolder);
+            throw new MessagingException("Failed to move emails from " + fromFolder + " to " + toFolder, e);
+        } finally {
+            imapPool.release(conn);
+            metrics.getTimer(EmailMetrics.ARCHIVE).stop(start);
         }
     }
+
+    /**
+     * Move messages with MOVE, or with COPY and EXPUNGE if MOVE is not supported
+     *
+     * @param conn   the connection the messages were retrieved with
+     * @param source   the folder the messages are in
+     * @param messages   the messages to be moved
+     * @param target   the folder the messages are going to be moved to
+     * @throws MessagingException   if messages cannot be moved
+     */
+    private void moveMessages(ImapConnection conn, IMAPFolder source, Message[] messages, Folder target)
+                    throws MessagingException {
+        IMAPStore imapStore = conn.getStore();
+        if (imapStore.hasCapability(MOVE)) {
+            source.moveMessages(messages, target);
+        } else {
+            source.copyMessages(messages, target);
+            source.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+            if (imapStore.hasCapability(UIDPLUS)) {
+                source.expunge(messages);
+            } else {
+                source.expunge();
+            }
+        }
+    }
+
+    /**
+     * Close the IMAP and SMTP connections
+     */
+    public void close() {
+        closed = true;
+        idleTimer.shutdownNow();
+        smtpPool.close();
+        imapPool.close();
+        watchConnection.close();
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * An email that has been read from the mail server and detached from it.
+ *
+ * The headers are held in a MimeMessage that is not connected to any folder,
+ * so replying to an EmailMessage never goes back to the IMAP connection.
+ */
+public class EmailMessage {
+
+    private static final String IN_REPLY_TO = "In-Reply-To";
+    private static final String REPLY_PREFIX = "RE:";
+
+    private final String mailbox;
+    private final long uid;
+    private final MimeMessage headers;
+    private final String bodyText;
+    private final int size;
+
+    /**
+     * Create an EmailMessage
+     *
+     * @param mailbox   the name of the mailbox the email was read from
+     * @param uid   the IMAP UID of the email in its folder
+     * @param headers   a detached message holding the email's headers
+     * @param bodyText   the text of the email body
+     * @param size   the size of the email in bytes, or -1 if unknown
+     */
+    public EmailMessage(String mailbox, long uid, MimeMessage headers, String bodyText, int size) {
+        this.mailbox = mailbox;
+        this.uid = uid;
+        this.headers = headers;
+        this.bodyText = bodyText;
+        this.size = size;
+    }
+
+    /**
+     * Get the name of the mailbox the email was read from
+     *
+     * @return the mailbox name
+     */
+    public String getMailbox() {
+        return mailbox;
+    }
+
+    /**
+     * Get the IMAP UID of the email
+     *
+     * @return the UID
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * Get the detached message holding the email's headers
+     *
+     * @return the message
+     */
+    public MimeMessage getMessage() {
+        return headers;
+    }
+
+    /**
+     * Get the subject of the email
+     *
+     * @return the subject or null if there is none
+     * @throws MessagingException   if the subject header cannot be decoded
+     */
+    public String getSubject() throws MessagingException {
+        return headers.getSubject();
+    }
+
+    /**
+     * Get the Message-ID of the email
+     *
+     * @return the Message-ID or null if there is none
+     */
+    public String getMessageId() {
+        try {
+            return headers.getMessageID();
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the address the email was sent from
+     *
+     * @return the lower case sender address, or an empty string if it cannot be read
+     */
+    public String getSender() {
+        try {
+            Address[] from = headers.getFrom();
+            if (from == null || from.length == 0) {
+                return "";
+            }
+            if (from[0] instanceof InternetAddress) {
+                return ((InternetAddress) from[0]).getAddress().toLowerCase();
+            }
+            return from[0].toString().toLowerCase();
+        } catch (MessagingException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Check whether the email replies to an earlier one
+     *
+     * @return whether the email has an In-Reply-To header or a Re: subject
+     */
+    public boolean isReply() {
+        try {
+            String subject = headers.getSubject();
+            return headers.getHeader(IN_REPLY_TO) != null
+                            || (subject != null && subject.trim().toUpperCase().startsWith(REPLY_PREFIX));
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the text of the email body
+     *
+     * @return the body text
+     */
+    public String getBodyText() {
+        return bodyText;
+    }
+
+    /**
+     * Get the size of the email
+     *
+     * @return the size in bytes, or -1 if unknown
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timers and counters for each stage of the email pipeline.
+ *
+ * The stages are fetching from IMAP, parsing the MIME body, answering with
+ * the Dorset application, sending with SMTP and archiving. Everything is
+ * published as JMX MBeans under edu.jhuapl.dorset.demos and can be written
+ * in the Prometheus text format for MetricsHttpServer.
+ */
+public class EmailMetrics implements EmailMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailMetrics.class);
+
+    public static final String FETCH = "fetch";
+    public static final String PARSE = "parse";
+    public static final String PROCESS = "process";
+    public static final String SEND = "send";
+    public static final String ARCHIVE = "archive";
+    public static final String SMTP = "smtp";
+    public static final String IMAP = "imap";
+
+    private static final String DOMAIN = "edu.jhuapl.dorset.demos";
+
+    /**
+     * A value read when the metrics are published
+     */
+    public interface Gauge {
+        /**
+         * Read the current value
+         *
+         * @return the value
+         */
+        long getValue();
+    }
+
+    private final Map<String, StageTimer> timers = new LinkedHashMap<String, StageTimer>();
+    private final Map<String, AtomicLong> retries = new LinkedHashMap<String, AtomicLong>();
+    private final Map<FolderType, AtomicLong> failures = new EnumMap<FolderType, AtomicLong>(FolderType.class);
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong replied = new AtomicLong();
+    private final AtomicLong archived = new AtomicLong();
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+    private Gauge queueDepth;
+    private Gauge sendQueueDepth;
+    private Gauge coalesced;
+
+    /**
+     * Create an EmailMetrics
+     */
+    public EmailMetrics() {
+        for (String stage : new String[] {FETCH, PARSE, PROCESS, SEND, ARCHIVE}) {
+            timers.put(stage, new StageTimer(stage));
+        }
+        retries.put(SMTP, new AtomicLong());
+        retries.put(IMAP, new AtomicLong());
+        for (FolderType type : FolderType.values()) {
+            failures.put(type, new AtomicLong());
+        }
+    }
+
+    /**
+     * Get the timer for a stage
+     *
+     * @param stage   the stage, such as FETCH
+     * @return the timer
+     */
+    public StageTimer getTimer(String stage) {
+        return timers.get(stage);
+    }
+
+    /**
+     * Count emails fetched
+     *
+     * @param count   the number of emails
+     */
+    public void fetched(int count) {
+        fetched.addAndGet(count);
+    }
+
+    /**
+     * Count replies sent
+     *
+     * @param count   the number of replies
+     */
+    public void replied(int count) {
+        replied.addAndGet(count);
+    }
+
+    /**
+     * Count emails archived
+     *
+     * @param count   the number of emails
+     */
+    public void archived(int count) {
+        archived.addAndGet(count);
+    }
+
+    /**
+     * Count a retry
+     *
+     * @param kind   what was retried, SMTP or IMAP
+     */
+    public void retry(String kind) {
+        retries.get(kind).incrementAndGet();
+    }
+
+    /**
+     * Count a failed mail server operation
+     *
+     * @param folder   the folder the operation was on
+     */
+    public void failure(FolderType folder) {
+        failures.get(folder).incrementAndGet();
+    }
+
+    /**
+     * Set how the queue depths are read
+     *
+     * @param queueDepth   the depth of the email queue
+     * @param sendQueueDepth   the depth of the send stage's queue
+     */
+    public void setQueueDepths(Gauge queueDepth, Gauge sendQueueDepth) {
+        this.queueDepth = queueDepth;
+        this.sendQueueDepth = sendQueueDepth;
+    }
+
+    /**
+     * Set how the number of emails answered with the answer to an identical question is read
+     *
+     * @param coalesced   the number of coalesced emails
+     */
+    public void setCoalescedCount(Gauge coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth == null ? 0 : queueDepth.getValue();
+    }
+
+    @Override
+    public long getSendQueueDepth() {
+        return sendQueueDepth == null ? 0 : sendQueueDepth.getValue();
+    }
+
+    @Override
+    public long getFetchedCount() {
+        return fetched.get();
+    }
+
+    @Override
+    public long getRepliedCount() {
+        return replied.get();
+    }
+
+    @Override
+    public long getArchivedCount() {
+        return archived.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced == null ? 0 : coalesced.getValue();
+    }
+
+    @Override
+    public Map<String, Long> getRetries() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : retries.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<FolderType, AtomicLong> entry : failures.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Publish the metrics as JMX MBeans
+     */
+    public void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=EmailMetrics"), this);
+            for (StageTimer timer : timers.values()) {
+                register(server, new ObjectName(DOMAIN + ":type=StageTimer,name=" + timer.getName()), timer);
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to register email metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Register one MBean, replacing any left by an earlier client
+     *
+     * @param server   the MBean server
+     * @param name   the name of the MBean
+     * @param bean   the MBean
+     * @throws JMException   if the MBean cannot be registered
+     */
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    /**
+     * Remove the JMX MBeans
+     */
+    public void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                logger.debug("Failed to unregister " + name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format
+     *
+     * @param out   where to write the metrics
+     */
+    public void writePrometheus(PrintWriter out) {
+        line(out, "# HELP email_stage_seconds Time taken by each stage of the email pipeline");
+        line(out, "# TYPE email_stage_seconds histogram");
+        for (StageTimer timer : timers.values()) {
+            long cumulative = 0;
+            for (int bucket = 0; bucket < timer.getBucketCount(); bucket++) {
+                cumulative += timer.getBucket(bucket);
+                double bound = timer.getUpperBoundSeconds(bucket);
+                String le = Double.isInfinite(bound) ? "+Inf" : String.format(Locale.ROOT, "%.6f", bound);
+                line(out, "email_stage_seconds_bucket{stage=\"" + timer.getName() + "\",le=\"" + le + "\"} "
+                                + cumulative);
+            }
+            line(out, "email_stage_seconds_sum{stage=\"" + timer.getName() + "\"} "
+                            + String.format(Locale.ROOT, "%.6f", timer.getSumSeconds()));
+            line(out, "email_stage_seconds_count{stage=\"" + timer.getName() + "\"} " + cumulative);
+        }
+        writeCounter(out, "email_fetched_total", "Emails fetched", fetched.get());
+        writeCounter(out, "email_replied_total", "Replies sent", replied.get());
+        writeCounter(out, "email_archived_total", "Emails archived", archived.get());
+        writeCounter(out, "email_coalesced_total", "Emails answered with the answer to an identical question",
+                        getCoalescedCount());
+        line(out, "# HELP email_retries_total Retries of mail server connections");
+        line(out, "# TYPE email_retries_total counter");
+        for (Map.Entry<String, Long> entry : getRetries().entrySet()) {
+            line(out, "email_retries_total{kind=\"" + entry.getKey() + "\"} " + entry.getValue());
+        }
+        line(out, "# HELP email_failures_total Failed mail server operations by folder");
+        line(out, "# TYPE email_failures_total counter");
+        for (Map.Entry<String, Long> entry : getFailures().entrySet()) {
+            line(out, "email_failures_total{folder=\"" + entry.getKey() + "\"} " + entry.getValue());
+        }
+        writeGauge(out, "email_queue_depth", "Emails waiting to be answered", getQueueDepth());
+        writeGauge(out, "email_send_queue_depth", "Replies waiting for a send thread", getSendQueueDepth());
+    }
+
+    /**
+     * Write one line, ending it with a newline on every platform
+     *
+     * @param out   where to write the line
+     * @param text   the line
+     */
+    private void line(PrintWriter out, String text) {
+        out.print(text);
+        out.print('\n');
+    }
+
+    /**
+     * Write a counter with no labels
+     *
+     * @param out   where to write the counter
+     * @param name   the metric name
+     * @param help   the description of the metric
+     * @param value   the value
+     */
+    private void writeCounter(PrintWriter out, String name, String help, long value) {
+        line(out, "# HELP " + name + " " + help);
+        line(out, "# TYPE " + name + " counter");
+        line(out, name + " " + value);
+    }
+
+    /**
+     * Write a gauge with no labels
+     *
+     * @param out   where to write the gauge
+     * @param name   the metric name
+     * @param help   the description of the metric
+     * @param value   the value
+     */
+    private void writeGauge(PrintWriter out, String name, String help, long value) {
+        line(out, "# HELP " + name + " " + help);
+        line(out, "# TYPE " + name + " gauge");
+        line(out, name + " " + value);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.Map;
+
+/**
+ * JMX view of the email client's counters and gauges
+ */
+public interface EmailMetricsMXBean {
+
+    /**
+     * Get the number of emails waiting to be answered
+     *
+     * @return the depth of the email queue
+     */
+    long getQueueDepth();
+
+    /**
+     * Get the number of replies waiting for a send thread
+     *
+     * @return the depth of the send stage's queue
+     */
+    long getSendQueueDepth();
+
+    /**
+     * Get the number of emails fetched
+     *
+     * @return the count
+     */
+    long getFetchedCount();
+
+    /**
+     * Get the number of replies sent
+     *
+     * @return the count
+     */
+    long getRepliedCount();
+
+    /**
+     * Get the number of emails archived
+     *
+     * @return the count
+     */
+    long getArchivedCount();
+
+    /**
+     * Get the number of emails answered with the answer to an identical question
+     *
+     * @return the count
+     */
+    long getCoalescedCount();
+
+    /**
+     * Get the number of retries, by kind
+     *
+     * @return the retry counts keyed by kind, such as smtp or imap
+     */
+    Map<String, Long> getRetries();
+
+    /**
+     * Get the number of failed mail server operations, by folder
+     *
+     * @return the failure counts keyed by folder type
+     */
+    Map<String, Long> getFailures();
+}
@@ -19,23 +19,27 @@ package edu.jhuapl.dorset.demos;
 public class EmailProducer implements Runnable {
 
     private EmailClient client;
+    private Mailbox mailbox;
 
     /**
      * Create an EmailProducer
      *
      * @param client   EmailClient object
+     * @param mailbox   the mailbox to fetch email from
      */
-    public EmailProducer(EmailClient client) {
+    public EmailProducer(EmailClient client, Mailbox mailbox) {
         this.client = client;
+        this.mailbox = mailbox;
     }
 
     /**
      * Run producer thread
      */
     public void run() {
-        client.printNumberOfMessages();
-        while (true) {
-            client.handleUnseenMessage();
+        client.printNumberOfMessages(mailbox);
+        while (client.isRunning() && !Thread.currentThread().isInterrupted()) {
+            boolean foundMessages = client.handleUnseenMessage(mailbox);
+            client.waitForNewMessages(mailbox, foundMessages);
         }
     }
 }
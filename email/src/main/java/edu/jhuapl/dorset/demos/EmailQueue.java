@@ -16,37 +16,204 @@
  */
 package edu.jhuapl.dorset.demos;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-
-import javax.mail.Message;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A bounded queue of emails waiting to be answered.
+ *
+ * Emails are kept in priority lanes, and a lane is only served when the
+ * lanes ahead of it are empty. Within a lane, senders take turns, so a
+ * flood of email from one address does not hold up everyone else. Putting
+ * into a full queue waits for room instead of failing, which slows the
+ * producers down during a burst. An email from a sender who already has
+ * the most the queue allows is held back rather than waited on, and moves
+ * into the queue as that sender's earlier emails are taken, so the
+ * producer carries on with everyone else's mail. Held back emails count
+ * against the capacity, so a flood from one sender still fills the queue
+ * and stops the producers fetching more.
+ */
 public class EmailQueue {
 
-    private BlockingQueue<Message> messages;
+    /**
+     * The priority lanes, highest priority first
+     */
+    public enum Lane {
+        /** Replies to a thread the client is already part of */
+        REPLY,
+        /** New conversations */
+        NEW
+    }
+
+    private static final int DEFAULT_CAPACITY = 20;
+
+    private final int capacity;
+    private final int maxPerSender;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<Lane, LaneQueue> lanes = new EnumMap<Lane, LaneQueue>(Lane.class);
+    private final Map<String, Integer> senderCounts = new HashMap<String, Integer>();
+    private final Map<String, Deque<Waiting>> heldBack = new HashMap<String, Deque<Waiting>>();
+    private int count;
+    private int heldBackCount;
+    private long takenCount;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
 
     /**
-     * Create an EmailQueue
+     * Create an EmailQueue with the default capacity and no per sender limit
      */
     public EmailQueue() {
-        messages = new ArrayBlockingQueue<Message>(20);
+        this(DEFAULT_CAPACITY, 0);
     }
 
     /**
-     * Put a message into the queue
+     * Create an EmailQueue
+     *
+     * @param capacity   the maximum number of emails in the queue, including those held back
+     * @param maxPerSender   the maximum number of emails from one sender before more are held back, or 0 for no limit
+     */
+    public EmailQueue(int capacity, int maxPerSender) {
+        this.capacity = capacity;
+        this.maxPerSender = maxPerSender > 0 ? maxPerSender : capacity;
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneQueue());
+        }
+    }
+
+    /**
+     * Put a message into the queue, waiting for room if necessary
+     *
+     * A message from a sender at the per sender limit is held back
+     * without waiting.
+     *
+     * @param msg   the message to be put into the queue
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public void putMessage(EmailMessage msg) throws InterruptedException {
+        String sender = msg.getSender();
+        lock.lockInterruptibly();
+        try {
+            while (count + heldBackCount >= capacity) {
+                notFull.await();
+            }
+            add(new Waiting(msg, sender));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put a message into the queue, waiting up to a timeout for room
      *
      * @param msg   the message to be put into the queue
+     * @param timeout   how long to wait
+     * @param unit   the unit of the timeout
+     * @return whether the message was queued or held back
+     * @throws InterruptedException   if interrupted while waiting
      */
-    public void putMessage(Message msg) {
-        messages.add(msg);
+    public boolean offerMessage(EmailMessage msg, long timeout, TimeUnit unit) throws InterruptedException {
+        String sender = msg.getSender();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count + heldBackCount >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            add(new Waiting(msg, sender));
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Take a message off the queue
-     * 
+     *
+     * @return the next message or null if the queue is empty
      */
-    public void removeMessageIfAny() {
-        messages.remove();
+    public EmailMessage removeMessageIfAny() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a message off the queue, waiting for one if necessary
+     *
+     * @return the next message
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public EmailMessage takeMessage() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a message off the queue, waiting up to a timeout for one
+     *
+     * @param timeout   how long to wait
+     * @param unit   the unit of the timeout
+     * @return the next message or null if none arrived in time
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public EmailMessage pollMessage(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the maximum number of messages the queue can hold
+     *
+     * @return the capacity of the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Return the number of messages that can be put into the queue without blocking
+     *
+     * @return the remaining capacity of the queue
+     */
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count - heldBackCount;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -55,6 +222,206 @@ public class EmailQueue {
      * @return whether the queue is empty or not
      */
     public boolean isEmpty() {
-        return messages.isEmpty();
+        return getDepth() == 0;
+    }
+
+    /**
+     * Return the number of messages in the queue, including those held back
+     *
+     * @return the queue depth
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return count + heldBackCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of messages in one lane
+     *
+     * @param lane   the lane
+     * @return the lane depth
+     */
+    public int getDepth(Lane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane).size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of messages taken off the queue
+     *
+     * @return the number of messages taken
+     */
+    public long getTakenCount() {
+        lock.lock();
+        try {
+            return takenCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the average time messages waited in the queue
+     *
+     * @return the average wait in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        lock.lock();
+        try {
+            return takenCount == 0 ? 0 : (double) totalWaitMillis / takenCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the longest time a message waited in the queue
+     *
+     * @return the longest wait in milliseconds
+     */
+    public long getMaxWaitMillis() {
+        lock.lock();
+        try {
+            return maxWaitMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of messages held back because of the per sender limit
+     *
+     * @return the number of messages held back
+     */
+    public int getHeldBackCount() {
+        lock.lock();
+        try {
+            return heldBackCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a message to its lane, or hold it back if its sender is at the limit, holding the lock
+     *
+     * @param waiting   the message and its sender
+     */
+    private void add(Waiting waiting) {
+        Integer queued = senderCounts.get(waiting.sender);
+        if (queued != null && queued >= maxPerSender) {
+            Deque<Waiting> held = heldBack.get(waiting.sender);
+            if (held == null) {
+                held = new ArrayDeque<Waiting>();
+                heldBack.put(waiting.sender, held);
+            }
+            held.addLast(waiting);
+            heldBackCount++;
+        } else {
+            enqueue(waiting);
+        }
+    }
+
+    /**
+     * Add a message to its lane, holding the lock
+     *
+     * @param waiting   the message and its sender
+     */
+    private void enqueue(Waiting waiting) {
+        Lane lane = waiting.msg.isReply() ? Lane.REPLY : Lane.NEW;
+        lanes.get(lane).add(waiting.sender, waiting);
+        Integer queued = senderCounts.get(waiting.sender);
+        senderCounts.put(waiting.sender, queued == null ? 1 : queued + 1);
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Remove the next message from the highest priority lane, holding the lock
+     *
+     * @return the message
+     */
+    private EmailMessage dequeue() {
+        Waiting waiting = null;
+        for (LaneQueue lane : lanes.values()) {
+            if (lane.size > 0) {
+                waiting = lane.remove();
+                break;
+            }
+        }
+        int queued = senderCounts.get(waiting.sender);
+        if (queued == 1) {
+            senderCounts.remove(waiting.sender);
+        } else {
+            senderCounts.put(waiting.sender, queued - 1);
+        }
+        count--;
+        long wait = System.currentTimeMillis() - waiting.queuedAt;
+        takenCount++;
+        totalWaitMillis += wait;
+        maxWaitMillis = Math.max(maxWaitMillis, wait);
+        Deque<Waiting> held = heldBack.get(waiting.sender);
+        if (held != null) {
+            // the sender's slot goes to its next held back message
+            enqueue(held.removeFirst());
+            heldBackCount--;
+            if (held.isEmpty()) {
+                heldBack.remove(waiting.sender);
+            }
+        }
+        notFull.signal();
+        return waiting.msg;
+    }
+
+    /**
+     * One lane, with a queue per sender served in turn
+     */
+    private static class LaneQueue {
+        private final Map<String, Deque<Waiting>> bySender = new HashMap<String, Deque<Waiting>>();
+        private final Deque<String> turns = new ArrayDeque<String>();
+        private int size;
+
+        private void add(String sender, Waiting waiting) {
+            Deque<Waiting> queue = bySender.get(sender);
+            if (queue == null) {
+                queue = new ArrayDeque<Waiting>();
+                bySender.put(sender, queue);
+                turns.addLast(sender);
+            }
+            queue.addLast(waiting);
+            size++;
+        }
+
+        private Waiting remove() {
+            String sender = turns.removeFirst();
+            Deque<Waiting> queue = bySender.get(sender);
+            Waiting waiting = queue.removeFirst();
+            if (queue.isEmpty()) {
+                bySender.remove(sender);
+            } else {
+                turns.addLast(sender);
+            }
+            size--;
+            return waiting;
+        }
+    }
+
+    private static class Waiting {
+        private final EmailMessage msg;
+        private final String sender;
+        private final long queuedAt = System.currentTimeMillis();
+
+        private Waiting(EmailMessage msg, String sender) {
+            this.msg = msg;
+            this.sender = sender;
+        }
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.iap.ResponseHandler;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+
+/**
+ * One IMAP connection with its own opened inbox.
+ *
+ * A connection is used by one thread at a time.
+ */
+public class ImapConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImapConnection.class);
+
+    private final IMAPStore store;
+    private final Map<FolderType, Folder> folders = new EnumMap<FolderType, Folder>(FolderType.class);
+    private long lastUsed;
+    private volatile boolean countBehind;
+
+    /**
+     * Connect to the mail server and open the inbox
+     *
+     * @param session   the mail session
+     * @param storeType   the store protocol, imap or imaps
+     * @param host   the mail server
+     * @param username   the account username
+     * @param password   the account password
+     * @param folderNames   the name of the folder used for each FolderType
+     * @throws MessagingException   if the connection cannot be established
+     */
+    public ImapConnection(Session session, String storeType, String host, String username, String password,
+                    Map<FolderType, String> folderNames) throws MessagingException {
+        store = (IMAPStore) session.getStore(storeType);
+        store.connect(host, username, password);
+        try {
+            for (FolderType type : FolderType.values()) {
+                folders.put(type, store.getFolder(folderNames.get(type)));
+            }
+            openInbox();
+        } catch (MessagingException e) {
+            store.close();
+            throw e;
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Open the inbox and watch the order of its EXISTS and EXPUNGE responses
+     *
+     * Some servers, GreenMail among them, report the new size of the folder
+     * before the EXPUNGEs that led to it. The client ignores a size that is not
+     * above the one it knows and then removes the expunged emails, leaving it
+     * short of the emails that arrived in the meantime.
+     *
+     * @throws MessagingException   if the inbox cannot be opened
+     */
+    private void openInbox() throws MessagingException {
+        IMAPFolder inbox = getFolder(FolderType.INBOX);
+        inbox.open(Folder.READ_WRITE);
+        countBehind = false;
+        inbox.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                protocol.addResponseHandler(new ResponseHandler() {
+                    private boolean sawExists;
+
+                    @Override
+                    public void handleResponse(Response response) {
+                        if (response.isTagged()) {
+                            sawExists = false;
+                        } else if (response instanceof IMAPResponse) {
+                            IMAPResponse imapResponse = (IMAPResponse) response;
+                            if (imapResponse.keyEquals("EXISTS")) {
+                                sawExists = true;
+                            } else if (sawExists && imapResponse.keyEquals("EXPUNGE")) {
+                                countBehind = true;
+                            }
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get a folder. Only the inbox is open.
+     *
+     * @param folder   the folder to be returned
+     * @return the folder
+     */
+    public IMAPFolder getFolder(FolderType folder) {
+        return (IMAPFolder) folders.get(folder);
+    }
+
+    /**
+     * Send a NOOP on an open folder, ending an IDLE in progress on it
+     *
+     * @param folder   the folder
+     * @throws MessagingException   if the server cannot be reached
+     */
+    public void noop(FolderType folder) throws MessagingException {
+        getFolder(folder).doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                protocol.noop();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Bring the message numbers of an open folder up to date
+     *
+     * A NOOP collects the EXPUNGE responses the server is holding for this
+     * connection, so emails expunged through other connections are
+     * renumbered here before message numbers are sent to the server. If the
+     * server reported the size of the inbox before its EXPUNGEs, the inbox
+     * is selected again to learn its real size.
+     *
+     * @param folder   the folder to update
+     * @throws MessagingException   if the server cannot be reached
+     */
+    public void sync(FolderType folder) throws MessagingException {
+        noop(folder);
+        if (folder == FolderType.INBOX && countBehind) {
+            logger.debug("Reselecting inbox to catch up with its size");
+            getFolder(folder).close(false);
+            openInbox();
+        }
+    }
+
+    /**
+     * Get the store
+     *
+     * @return the store
+     */
+    public IMAPStore getStore() {
+        return store;
+    }
+
+    /**
+     * Return whether the connection is still open
+     *
+     * The folder pings the server if the connection has been quiet for a while.
+     *
+     * @return whether the inbox is open
+     */
+    public boolean isUsable() {
+        return folders.get(FolderType.INBOX).isOpen();
+    }
+
+    /**
+     * Get the time the connection was last returned to the pool
+     *
+     * @return the time in milliseconds
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Record that the connection was just used
+     */
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the inbox and store, ignoring errors
+     */
+    public void close() {
+        try {
+            if (folders.get(FolderType.INBOX).isOpen()) {
+                folders.get(FolderType.INBOX).close(false);
+            }
+            store.close();
+        } catch (MessagingException e) {
+            logger.debug("Failed to close IMAP connection", e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of IMAP connections, each with its own opened inbox.
+ *
+ * A connection is leased for one piece of work and then released. Connections
+ * are opened on demand up to the pool size. One that has been idle longer
+ * than the idle timeout, or has been closed by the server, is replaced.
+ *
+ * The pool can also keep a warm standby connection, logged in with its inbox
+ * open, which is handed out first when a new connection is needed. A failed
+ * connection can then be replaced without waiting for a login. The standby
+ * is checked every minute and replaced in the background. Connecting is
+ * retried with jittered exponential backoff.
+ */
+public class ImapConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImapConnectionPool.class);
+
+    private static final long STANDBY_CHECK_INTERVAL = 60000;
+
+    private final Session session;
+    private final String storeType;
+    private final String host;
+    private final String username;
+    private final String password;
+    private final Map<FolderType, String> folderNames;
+    private final long idleTimeout;
+    private final int reconnectAttempts;
+    private final long reconnectDelay;
+    private final long reconnectMaxDelay;
+    private final EmailMetrics metrics;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<ImapConnection> idle = new LinkedBlockingDeque<ImapConnection>();
+    private final AtomicReference<ImapConnection> standby = new AtomicReference<ImapConnection>();
+    private final ScheduledExecutorService standbyScheduler;
+    private volatile boolean closed;
+
+    /**
+     * Create an ImapConnectionPool
+     *
+     * @param session   the mail session
+     * @param storeType   the store protocol, imap or imaps
+     * @param host   the mail server
+     * @param username   the account username
+     * @param password   the account password
+     * @param folderNames   the name of the folder used for each FolderType
+     * @param size   the maximum number of open connections
+     * @param idleTimeout   milliseconds a connection can sit idle before it is closed
+     * @param reconnectAttempts   the number of times to try opening a connection
+     * @param reconnectDelay   milliseconds to wait after the first failed attempt
+     * @param reconnectMaxDelay   the longest wait between attempts in milliseconds
+     * @param keepStandby   whether to keep a warm standby connection
+     * @param metrics   the metrics to count reconnect attempts in
+     */
+    public ImapConnectionPool(Session session, String storeType, String host, String username, String password,
+                    Map<FolderType, String> folderNames, int size, long idleTimeout, int reconnectAttempts,
+                    long reconnectDelay, long reconnectMaxDelay, boolean keepStandby, EmailMetrics metrics) {
+        this.session = session;
+        this.storeType = storeType;
+        this.host = host;
+        this.username = username;
+        this.password = password;
+        this.folderNames = folderNames;
+        this.idleTimeout = idleTimeout;
+        this.reconnectAttempts = Math.max(reconnectAttempts, 1);
+        this.reconnectDelay = reconnectDelay;
+        this.reconnectMaxDelay = reconnectMaxDelay;
+        this.metrics = metrics;
+        permits = new Semaphore(Math.max(size, 1), true);
+        if (keepStandby) {
+            final String name = "imap-standby-" + username;
+            standbyScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            standbyScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkStandby();
+                }
+            }, 0, STANDBY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            standbyScheduler = null;
+        }
+    }
+
+    /**
+     * Open a connection that is not part of the pool
+     *
+     * The standby connection is used if there is a usable one. Otherwise a
+     * new connection is opened, backing off between failed attempts.
+     *
+     * @return the connection
+     * @throws MessagingException   if the connection cannot be established
+     */
+    public ImapConnection open() throws MessagingException {
+        ImapConnection conn = takeStandby();
+        if (conn != null) {
+            return conn;
+        }
+        Backoff backoff = new Backoff(reconnectDelay, reconnectMaxDelay);
+        MessagingException failure = null;
+        for (int attempt = 1; attempt <= reconnectAttempts; attempt++) {
+            try {
+                return new ImapConnection(session, storeType, host, username, password, folderNames);
+            } catch (MessagingException e) {
+                failure = e;
+                logger.warn("Failed to connect to " + host + " (attempt " + attempt + " of "
+                                + reconnectAttempts + ")");
+            }
+            if (attempt < reconnectAttempts) {
+                metrics.retry(EmailMetrics.IMAP);
+                try {
+                    backoff.sleep();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Take the standby connection and start opening the next one
+     *
+     * @return the standby connection or null if there is no usable one
+     */
+    private ImapConnection takeStandby() {
+        if (standbyScheduler == null) {
+            return null;
+        }
+        ImapConnection conn = standby.getAndSet(null);
+        if (!closed) {
+            standbyScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fillStandby();
+                }
+            });
+        }
+        if (conn != null && !conn.isUsable()) {
+            conn.close();
+            return null;
+        }
+        if (conn != null) {
+            logger.debug("Switched to the standby connection to " + host);
+        }
+        return conn;
+    }
+
+    /**
+     * Replace the standby connection if the server has closed it
+     */
+    private void checkStandby() {
+        ImapConnection conn = standby.get();
+        if (conn != null && !conn.isUsable() && standby.compareAndSet(conn, null)) {
+            logger.info("Standby connection to " + host + " was closed. Replacing it.");
+            conn.close();
+        }
+        fillStandby();
+    }
+
+    /**
+     * Open a standby connection if there is none, backing off until one opens
+     */
+    private void fillStandby() {
+        Backoff backoff = new Backoff(reconnectDelay, reconnectMaxDelay);
+        while (!closed && standby.get() == null) {
+            try {
+                ImapConnection conn = new ImapConnection(session, storeType, host, username, password, folderNames);
+                if (closed || !standby.compareAndSet(null, conn)) {
+                    conn.close();
+                }
+            } catch (MessagingException e) {
+                logger.warn("Failed to open standby connection to " + host, e);
+                metrics.retry(EmailMetrics.IMAP);
+                try {
+                    backoff.sleep();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take a connection from the pool, opening one if necessary
+     *
+     * Blocks while all connections are leased.
+     *
+     * @return the connection
+     * @throws MessagingException   if a connection cannot be opened
+     */
+    public ImapConnection lease() throws MessagingException {
+        permits.acquireUninterruptibly();
+        try {
+            ImapConnection conn = idle.pollFirst();
+            while (conn != null && !isHealthy(conn)) {
+                conn.close();
+                conn = idle.pollFirst();
+            }
+            if (conn == null) {
+                conn = open();
+            }
+            return conn;
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether an idle connection can be used
+     *
+     * @param conn   the connection
+     * @return whether the connection is open and not past the idle timeout
+     */
+    private boolean isHealthy(ImapConnection conn) {
+        return System.currentTimeMillis() - conn.getLastUsed() < idleTimeout && conn.isUsable();
+    }
+
+    /**
+     * Return a leased connection to the pool
+     *
+     * A connection that was closed while leased is discarded.
+     *
+     * @param conn   the connection
+     */
+    public void release(ImapConnection conn) {
+        if (conn.isUsable()) {
+            conn.touch();
+            idle.offerFirst(conn);
+        } else {
+            conn.close();
+        }
+        permits.release();
+        closeExpired();
+    }
+
+    /**
+     * Close connections at the back of the pool that are past the idle timeout
+     */
+    private void closeExpired() {
+        ImapConnection oldest = idle.peekLast();
+        while (oldest != null && System.currentTimeMillis() - oldest.getLastUsed() >= idleTimeout) {
+            if (idle.removeLastOccurrence(oldest)) {
+                oldest.close();
+            }
+            oldest = idle.peekLast();
+        }
+    }
+
+    /**
+     * Close all idle connections and the standby connection
+     */
+    public void close() {
+        closed = true;
+        if (standbyScheduler != null) {
+            standbyScheduler.shutdownNow();
+        }
+        ImapConnection spare = standby.getAndSet(null);
+        if (spare != null) {
+            spare.close();
+        }
+        ImapConnection conn = idle.pollFirst();
+        while (conn != null) {
+            conn.close();
+            conn = idle.pollFirst();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import javax.mail.MessagingException;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Waits for new mail to arrive in the inbox.
+ *
+ * In idle mode the server pushes new mail notifications over IMAP IDLE.
+ * If the server does not support IDLE, or poll mode is configured, the
+ * watcher polls with an interval that backs off while the inbox is quiet.
+ * In both modes a messagesAdded event wakes the watcher immediately.
+ */
+public class InboxWatcher implements MessageCountListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxWatcher.class);
+
+    private static final String WATCH_MODE_KEY = "watchMode";
+    private static final String MIN_POLL_INTERVAL_KEY = "minPollInterval";
+    private static final String MAX_POLL_INTERVAL_KEY = "maxPollInterval";
+
+    private static final String IDLE_MODE = "idle";
+    private static final String POLL_MODE = "poll";
+    private static final long DEFAULT_MIN_POLL_INTERVAL = 500;
+    private static final long DEFAULT_MAX_POLL_INTERVAL = 30000;
+
+    private EmailManager manager;
+    private boolean useIdle;
+    private long minPollInterval;
+    private long maxPollInterval;
+    private long pollInterval;
+    private boolean messagesAdded;
+
+    /**
+     * Create an InboxWatcher
+     *
+     * @param manager   the EmailManager for the inbox being watched
+     * @param config   Configuration object that stores the watch mode and poll intervals
+     */
+    public InboxWatcher(EmailManager manager, Config config) {
+        this.manager = manager;
+        String mode = config.hasPath(WATCH_MODE_KEY) ? config.getString(WATCH_MODE_KEY) : IDLE_MODE;
+        minPollInterval = getInterval(config, MIN_POLL_INTERVAL_KEY, DEFAULT_MIN_POLL_INTERVAL);
+        maxPollInterval = Math.max(minPollInterval,
+                        getInterval(config, MAX_POLL_INTERVAL_KEY, DEFAULT_MAX_POLL_INTERVAL));
+        pollInterval = minPollInterval;
+
+        if (IDLE_MODE.equalsIgnoreCase(mode)) {
+            useIdle = manager.supportsIdle();
+            if (!useIdle) {
+                logger.warn("Mail server does not support IDLE. Falling back to polling.");
+            }
+        } else if (!POLL_MODE.equalsIgnoreCase(mode)) {
+            logger.error("Invalid configuration set for " + WATCH_MODE_KEY + ". Must be " + IDLE_MODE
+                            + " or " + POLL_MODE + ". Defaulting to " + POLL_MODE + ".");
+        }
+        manager.addMessageCountListener(FolderType.INBOX, this);
+    }
+
+    /**
+     * Read a poll interval in milliseconds from the configuration
+     *
+     * @param config   Configuration object
+     * @param key   the configuration key
+     * @param defaultValue   the interval to use if the key is not set or invalid
+     * @return the interval in milliseconds
+     */
+    private long getInterval(Config config, String key, long defaultValue) {
+        if (!config.hasPath(key)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(config.getString(key));
+        } catch (NumberFormatException e) {
+            logger.error("Invalid configuration set for " + key + ". Must be an integer. Defaulting to "
+                            + defaultValue + ". " + e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Return whether the watcher is using IMAP IDLE
+     *
+     * @return whether the watcher is using IMAP IDLE
+     */
+    public boolean isIdleMode() {
+        return useIdle;
+    }
+
+    /**
+     * Block until new mail may be available
+     *
+     * Returns immediately if the last check found mail, since more may be waiting.
+     * In idle mode this also returns each time the IDLE is renewed, which is a
+     * normal turn of the caller's loop: the inbox is checked and idled on again.
+     *
+     * @param foundMessages   whether the last check of the inbox found new mail
+     * @throws MessagingException   if the IDLE command fails
+     */
+    public void awaitNewMessages(boolean foundMessages) throws MessagingException {
+        if (foundMessages) {
+            pollInterval = minPollInterval;
+            return;
+        }
+        if (useIdle) {
+            if (!consumeMessagesAdded()) {
+                manager.idle(FolderType.INBOX);
+            }
+        } else {
+            waitForPollInterval();
+        }
+    }
+
+    /**
+     * Wait for the current poll interval and back off for the next one
+     */
+    private synchronized void waitForPollInterval() {
+        if (!messagesAdded) {
+            try {
+                wait(pollInterval);
+            } catch (InterruptedException e) {
+                logger.info("Thread was interupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (messagesAdded) {
+            messagesAdded = false;
+            pollInterval = minPollInterval;
+        } else {
+            pollInterval = Math.min(pollInterval * 2, maxPollInterval);
+        }
+    }
+
+    /**
+     * Clear and return the messages added flag
+     *
+     * @return whether messages were added since the flag was last cleared
+     */
+    private synchronized boolean consumeMessagesAdded() {
+        boolean added = messagesAdded;
+        messagesAdded = false;
+        return added;
+    }
+
+    @Override
+    public synchronized void messagesAdded(MessageCountEvent event) {
+        messagesAdded = true;
+        notifyAll();
+    }
+
+    @Override
+    public void messagesRemoved(MessageCountEvent event) {
+    }
+}
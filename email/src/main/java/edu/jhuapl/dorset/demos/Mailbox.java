@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.typesafe.config.Config;
+
+/**
+ * One email account served by the EmailClient.
+ *
+ * Each mailbox has its own connections, inbox watcher, archiver and limits,
+ * and a reply sender if its replies are sent in batches. Emails that failed
+ * part way through are remembered by UID so they can be fetched again.
+ * All mailboxes share the EmailClient's queue, consumers and Dorset application.
+ */
+public class Mailbox {
+
+    private static final String MAX_IN_FLIGHT_KEY = "maxInFlight";
+    private static final String MAX_MESSAGES_PER_SECOND_KEY = "maxMessagesPerSecond";
+    private static final String MAX_RETRIES_KEY = "maxRetries";
+    private static final String RECONNECT_DELAY_KEY = "imapReconnectDelay";
+    private static final String RECONNECT_MAX_DELAY_KEY = "imapReconnectMaxDelay";
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long DEFAULT_RECONNECT_DELAY = 1000;
+    private static final long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+
+    private final EmailManager manager;
+    private final InboxWatcher watcher;
+    private final EmailArchiver archiver;
+    private final MailboxLimiter limiter;
+    private final ReplySender sender;
+    private final Backoff backoff;
+    private final int maxRetries;
+    private final Set<Long> retries = new LinkedHashSet<Long>();
+    private final Map<Long, Integer> attempts = new HashMap<Long, Integer>();
+
+    /**
+     * Create a Mailbox
+     *
+     * @param manager   the EmailManager for the account
+     * @param config   Configuration object for the account
+     * @param defaultMaxInFlight   the in flight limit to use if the account does not set one
+     * @param journal   the journal archived emails are recorded in
+     * @param replyListener   the listener told what became of batched replies
+     */
+    public Mailbox(EmailManager manager, Config config, int defaultMaxInFlight, WorkJournal journal,
+                    ReplySender.Listener replyListener) {
+        this.manager = manager;
+        watcher = new InboxWatcher(manager, config);
+        archiver = new EmailArchiver(manager, config, journal);
+        limiter = new MailboxLimiter(
+                        config.hasPath(MAX_IN_FLIGHT_KEY) ? config.getInt(MAX_IN_FLIGHT_KEY) : defaultMaxInFlight,
+                        config.hasPath(MAX_MESSAGES_PER_SECOND_KEY) ? config.getDouble(MAX_MESSAGES_PER_SECOND_KEY) : 0);
+        sender = ReplySender.getBatchSize(config) > 1 ? new ReplySender(manager, config, replyListener) : null;
+        backoff = new Backoff(
+                        config.hasPath(RECONNECT_DELAY_KEY) ? config.getLong(RECONNECT_DELAY_KEY) : DEFAULT_RECONNECT_DELAY,
+                        config.hasPath(RECONNECT_MAX_DELAY_KEY) ? config.getLong(RECONNECT_MAX_DELAY_KEY)
+                                        : DEFAULT_RECONNECT_MAX_DELAY);
+        maxRetries = config.hasPath(MAX_RETRIES_KEY) ? config.getInt(MAX_RETRIES_KEY) : DEFAULT_MAX_RETRIES;
+    }
+
+    /**
+     * Get the name of the mailbox
+     *
+     * @return the name
+     */
+    public String getName() {
+        return manager.getName();
+    }
+
+    /**
+     * Get the EmailManager for the account
+     *
+     * @return the EmailManager
+     */
+    public EmailManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Get the inbox watcher
+     *
+     * @return the InboxWatcher
+     */
+    public InboxWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Get the archiver
+     *
+     * @return the EmailArchiver
+     */
+    public EmailArchiver getArchiver() {
+        return archiver;
+    }
+
+    /**
+     * Get the reply sender
+     *
+     * @return the ReplySender or null if replies are not sent in batches
+     */
+    public ReplySender getSender() {
+        return sender;
+    }
+
+    /**
+     * Get the backoff between failed attempts to reach the mail server
+     *
+     * @return the Backoff
+     */
+    public Backoff getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Remember an email that failed part way through so it is fetched again
+     *
+     * @param uid   the UID of the email
+     * @return false if the email has failed too many times and was not remembered
+     */
+    public synchronized boolean retry(long uid) {
+        Integer count = attempts.get(uid);
+        count = count == null ? 1 : count + 1;
+        if (count > maxRetries) {
+            attempts.remove(uid);
+            return false;
+        }
+        attempts.put(uid, count);
+        retries.add(uid);
+        return true;
+    }
+
+    /**
+     * Take the UIDs of the emails waiting to be fetched again
+     *
+     * @return the UIDs, possibly empty
+     */
+    public synchronized long[] takeRetries() {
+        long[] uids = new long[retries.size()];
+        int n = 0;
+        for (long uid : retries) {
+            uids[n++] = uid;
+        }
+        retries.clear();
+        return uids;
+    }
+
+    /**
+     * Forget the failures of an email that has been answered
+     *
+     * @param uid   the UID of the email
+     */
+    public synchronized void succeeded(long uid) {
+        attempts.remove(uid);
+    }
+
+    /**
+     * Get the limits on the mailbox's share of the pipeline
+     *
+     * @return the MailboxLimiter
+     */
+    public MailboxLimiter getLimiter() {
+        return limiter;
+    }
+}
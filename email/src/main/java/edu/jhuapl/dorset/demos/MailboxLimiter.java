@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+/**
+ * Limits how much of the shared pipeline one mailbox can use.
+ *
+ * A mailbox can have at most maxInFlight emails between fetching and sending
+ * the reply, and can take in at most maxMessagesPerSecond emails on average.
+ * A limit of zero or less means unlimited.
+ */
+public class MailboxLimiter {
+
+    private final int maxInFlight;
+    private final double maxMessagesPerSecond;
+    private int inFlight;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a MailboxLimiter
+     *
+     * @param maxInFlight   the maximum number of emails being handled at once
+     * @param maxMessagesPerSecond   the maximum average intake rate
+     */
+    public MailboxLimiter(int maxInFlight, double maxMessagesPerSecond) {
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+        // allow a burst of one second's worth of email
+        tokens = Math.max(maxMessagesPerSecond, 1);
+        lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of emails the mailbox may take in now
+     *
+     * @return the number of emails
+     */
+    public synchronized int available() {
+        int available = maxInFlight - inFlight;
+        if (maxMessagesPerSecond > 0) {
+            refill();
+            available = Math.min(available, (int) tokens);
+        }
+        return Math.max(available, 0);
+    }
+
+    /**
+     * Record that emails were taken in
+     *
+     * @param count   the number of emails
+     */
+    public synchronized void acquire(int count) {
+        inFlight += count;
+        if (maxMessagesPerSecond > 0) {
+            tokens -= count;
+        }
+    }
+
+    /**
+     * Record that an email is no longer in flight
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Wait until an email is released or the timeout passes
+     *
+     * @param timeout   the maximum time to wait in milliseconds
+     */
+    public synchronized void awaitRelease(long timeout) {
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the tokens earned since the last refill
+     */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(Math.max(maxMessagesPerSecond, 1),
+                        tokens + (now - lastRefill) * maxMessagesPerSecond / 1000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the email pipeline.
+ *
+ * Each stage has its own threads and a bounded queue of work. When the
+ * queue is full the thread handing work forward runs it itself, which
+ * slows the earlier stage down instead of dropping the email. Once the
+ * stage is shut down, work handed to it is refused rather than dropped.
+ */
+public class PipelineStage {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a PipelineStage
+     *
+     * @param name   the name of the stage, used to name its threads
+     * @param threads   the number of threads working on the stage
+     * @param queueSize   the number of tasks that can wait for a thread
+     */
+    public PipelineStage(final String name, int threads, int queueSize) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                return new Thread(runnable, name + "-" + count.incrementAndGet());
+                            }
+                        }, new RejectedExecutionHandler() {
+                            @Override
+                            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                                if (executor.isShutdown()) {
+                                    throw new IllegalStateException(name + " has been shut down");
+                                }
+                                task.run();
+                            }
+                        });
+    }
+
+    /**
+     * Get the name of the stage
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Hand a task to the stage
+     *
+     * @param task   the task to run
+     * @throws IllegalStateException   if the stage has been shut down
+     */
+    public void submit(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Get the number of tasks waiting for a thread
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting tasks and let queued ones finish
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait for queued tasks to finish after shutdown
+     *
+     * @param timeout   the longest time to wait in milliseconds
+     * @return whether all tasks finished
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+}
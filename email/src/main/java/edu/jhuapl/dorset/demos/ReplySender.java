@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Sends the replies for one mailbox in batches.
+ *
+ * Replies wait in an outbound queue and are sent together when a batch is
+ * full or the flush interval passes, whichever comes first. A batch goes
+ * back to back over one pooled SMTP connection, so a burst of replies does
+ * not pay for leasing and checking a connection each time. The listener is
+ * told which replies the server accepted and which failed, so only accepted
+ * replies are archived.
+ *
+ * JavaMail does not pipeline SMTP commands, so each reply still waits for
+ * the server's answers to its own commands.
+ *
+ * The outbound queue is guarded by a ReentrantLock rather than a monitor,
+ * so a virtual thread waiting for room does not pin its carrier thread.
+ */
+public class ReplySender {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReplySender.class);
+
+    private static final String SEND_BATCH_SIZE_KEY = "sendBatchSize";
+    private static final String SEND_FLUSH_INTERVAL_KEY = "sendFlushInterval";
+    private static final String SEND_THREAD_COUNT_KEY = "sendThreads";
+    private static final String SEND_QUEUE_SIZE_KEY = "sendQueueSize";
+    private static final int DEFAULT_SEND_BATCH_SIZE = 1;
+    private static final long DEFAULT_SEND_FLUSH_INTERVAL = 50;
+    private static final int DEFAULT_SEND_THREAD_COUNT = 2;
+    private static final int DEFAULT_SEND_QUEUE_SIZE = 20;
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    /**
+     * Told what became of each reply
+     */
+    public interface Listener {
+        /**
+         * The server accepted the reply to an email
+         *
+         * @param email   the email that was answered
+         */
+        void sent(EmailMessage email);
+
+        /**
+         * The reply to an email could not be sent
+         *
+         * @param email   the email that was being answered
+         * @param exception   why the reply was not sent
+         */
+        void failed(EmailMessage email, MessagingException exception);
+    }
+
+    private final EmailManager manager;
+    private final Listener listener;
+    private final int batchSize;
+    private final int maxWaiting;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private List<Outbound> pending = new ArrayList<Outbound>();
+    private int waiting;
+
+    /**
+     * Create a ReplySender
+     *
+     * @param manager   the EmailManager for the account
+     * @param config   Configuration object that stores the batch size, flush interval, threads and queue size
+     * @param listener   the listener told what became of each reply
+     */
+    public ReplySender(EmailManager manager, Config config, Listener listener) {
+        this.manager = manager;
+        this.listener = listener;
+        batchSize = Math.max(getBatchSize(config), 1);
+        maxWaiting = Math.max(config.hasPath(SEND_QUEUE_SIZE_KEY) ? config.getInt(SEND_QUEUE_SIZE_KEY)
+                        : DEFAULT_SEND_QUEUE_SIZE, batchSize);
+        long flushInterval = config.hasPath(SEND_FLUSH_INTERVAL_KEY) ? config.getLong(SEND_FLUSH_INTERVAL_KEY)
+                        : DEFAULT_SEND_FLUSH_INTERVAL;
+        int threads = config.hasPath(SEND_THREAD_COUNT_KEY) ? config.getInt(SEND_THREAD_COUNT_KEY)
+                        : DEFAULT_SEND_THREAD_COUNT;
+
+        final String name = "email-send-" + manager.getName();
+        scheduler = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + count.incrementAndGet());
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the batch size an account is configured with
+     *
+     * @param config   Configuration object for the account
+     * @return the batch size, where 1 means replies are not batched
+     */
+    public static int getBatchSize(Config config) {
+        return config.hasPath(SEND_BATCH_SIZE_KEY) ? config.getInt(SEND_BATCH_SIZE_KEY) : DEFAULT_SEND_BATCH_SIZE;
+    }
+
+    /**
+     * Queue a reply, waiting while the outbound queue is full
+     *
+     * @param email   the email being answered
+     * @param text   the text of the reply
+     * @throws MessagingException   if the reply cannot be created
+     * @throws InterruptedException   if interrupted while waiting for room
+     */
+    public void send(EmailMessage email, String text) throws MessagingException, InterruptedException {
+        Outbound outbound = new Outbound(email, manager.createReply(text, email.getMessage()));
+        boolean full;
+        lock.lockInterruptibly();
+        try {
+            while (waiting >= maxWaiting) {
+                notFull.await();
+            }
+            pending.add(outbound);
+            waiting++;
+            full = pending.size() >= batchSize;
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the number of replies queued or being sent
+     *
+     * @return the number of replies
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the replies waiting in the outbound queue, a batch at a time
+     */
+    public void flush() {
+        List<Outbound> batch = takeBatch();
+        while (!batch.isEmpty()) {
+            Message[] replies = new Message[batch.size()];
+            for (int n = 0; n < replies.length; n++) {
+                replies[n] = batch.get(n).reply;
+            }
+            MessagingException[] failures = manager.sendReplies(replies);
+            logger.debug("Sent a batch of " + replies.length + " replies");
+            for (int n = 0; n < failures.length; n++) {
+                try {
+                    if (failures[n] == null) {
+                        listener.sent(batch.get(n).email);
+                    } else {
+                        listener.failed(batch.get(n).email, failures[n]);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Failed to finish reply to email " + batch.get(n).email.getUid(), e);
+                }
+            }
+            lock.lock();
+            try {
+                waiting -= batch.size();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            batch = takeBatch();
+        }
+    }
+
+    /**
+     * Take up to a batch of replies off the outbound queue
+     *
+     * @return the batch, which is empty if nothing is waiting
+     */
+    private List<Outbound> takeBatch() {
+        lock.lock();
+        try {
+            if (pending.size() <= batchSize) {
+                List<Outbound> batch = pending;
+                pending = new ArrayList<Outbound>();
+                return batch;
+            }
+            List<Outbound> batch = new ArrayList<Outbound>(pending.subList(0, batchSize));
+            pending.subList(0, batchSize).clear();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the flush timer and send anything still queued
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static class Outbound {
+        private final EmailMessage email;
+        private final Message reply;
+
+        private Outbound(EmailMessage email, Message reply) {
+            this.email = email;
+            this.reply = reply;
+        }
+    }
+}
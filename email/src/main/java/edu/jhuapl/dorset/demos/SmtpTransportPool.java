@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of connected, authenticated SMTP transports.
+ *
+ * Connections are opened on demand up to the pool size and kept open between
+ * sends, so replies don't pay for a TLS handshake and login every time. A
+ * connection that has been idle longer than the keep alive interval is
+ * checked with NOOP before it is reused, and one that fails is replaced.
+ */
+public class SmtpTransportPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    private static final String SMTP = "smtp";
+
+    private final Session session;
+    private final String username;
+    private final String password;
+    private final long keepAliveInterval;
+    private final EmailMetrics metrics;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<PooledTransport>();
+
+    /**
+     * Create an SmtpTransportPool
+     *
+     * @param session   the mail session with the SMTP server settings
+     * @param username   the SMTP username
+     * @param password   the SMTP password
+     * @param size   the maximum number of open connections
+     * @param keepAliveInterval   milliseconds a connection can sit idle before it is checked
+     * @param metrics   the metrics to count retries in
+     */
+    public SmtpTransportPool(Session session, String username, String password, int size,
+                    long keepAliveInterval, EmailMetrics metrics) {
+        this.session = session;
+        this.username = username;
+        this.password = password;
+        this.keepAliveInterval = keepAliveInterval;
+        this.metrics = metrics;
+        permits = new Semaphore(Math.max(size, 1), true);
+    }
+
+    /**
+     * Send a message over a pooled connection
+     *
+     * @param msg   the message to send
+     * @throws MessagingException   if the message cannot be sent
+     */
+    public void send(Message msg) throws MessagingException {
+        sendAll(new Message[] {msg});
+    }
+
+    /**
+     * Send several messages over one pooled connection
+     *
+     * @param msgs   the messages to send
+     * @throws MessagingException   if a message cannot be sent
+     */
+    public void sendAll(Message[] msgs) throws MessagingException {
+        for (MessagingException failure : sendBatch(msgs)) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Send several messages back to back over one pooled connection
+     *
+     * A message the server rejects does not stop the rest of the batch. If
+     * the connection fails part way through a message, the server may have
+     * accepted it already, so it is marked failed rather than sent again.
+     * The messages after it are retried once on a new connection.
+     *
+     * @param msgs   the messages to send
+     * @return the failure for each message, or null where the server accepted it
+     */
+    public MessagingException[] sendBatch(Message[] msgs) {
+        MessagingException[] failures = new MessagingException[msgs.length];
+        int sent = 0;
+        boolean retried = false;
+        while (sent < msgs.length) {
+            PooledTransport pooled;
+            try {
+                pooled = lease();
+            } catch (MessagingException e) {
+                fail(failures, sent, e);
+                return failures;
+            }
+            boolean released = false;
+            try {
+                for (; sent < msgs.length; sent++) {
+                    try {
+                        pooled.transport.sendMessage(msgs[sent], msgs[sent].getAllRecipients());
+                    } catch (SendFailedException e) {
+                        // the server rejected the message, but the connection is still good
+                        failures[sent] = e;
+                    }
+                }
+                release(pooled);
+                released = true;
+            } catch (MessagingException e) {
+                logger.warn("SMTP connection failed while sending a message, which may have been delivered."
+                                + " It is not sent again.", e);
+                // a rejection, so the message is not retried later either
+                failures[sent] = new SendFailedException("Connection failed while sending the message", e);
+                sent++;
+                if (retried) {
+                    fail(failures, sent, e);
+                    return failures;
+                }
+                if (sent < msgs.length) {
+                    logger.warn("Reconnecting to send the rest of the batch.");
+                    metrics.retry(EmailMetrics.SMTP);
+                }
+                retried = true;
+            } finally {
+                if (!released) {
+                    invalidate(pooled);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Record the same failure for the messages from an index on
+     *
+     * @param failures   the failure of each message
+     * @param from   the first message that was not sent
+     * @param failure   the failure
+     */
+    private void fail(MessagingException[] failures, int from, MessagingException failure) {
+        for (int n = from; n < failures.length; n++) {
+            failures[n] = failure;
+        }
+    }
+
+    /**
+     * Take a healthy connection from the pool, opening one if necessary
+     *
+     * @return the connection
+     * @throws MessagingException   if a connection cannot be opened
+     */
+    private PooledTransport lease() throws MessagingException {
+        permits.acquireUninterruptibly();
+        try {
+            PooledTransport pooled = idle.pollFirst();
+            while (pooled != null && !isHealthy(pooled)) {
+                close(pooled);
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                pooled = open();
+            }
+            return pooled;
+        } catch (MessagingException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Check a connection that has been idle longer than the keep alive interval
+     *
+     * @param pooled   the connection
+     * @return whether the connection can be used
+     */
+    private boolean isHealthy(PooledTransport pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < keepAliveInterval) {
+            return true;
+        }
+        // SMTPTransport sends a NOOP to check the connection
+        return pooled.transport.isConnected();
+    }
+
+    /**
+     * Open and authenticate a new connection
+     *
+     * @return the connection
+     * @throws MessagingException   if the connection cannot be opened
+     */
+    private PooledTransport open() throws MessagingException {
+        Transport transport = session.getTransport(SMTP);
+        transport.connect(username, password);
+        return new PooledTransport(transport);
+    }
+
+    /**
+     * Return a connection to the pool
+     *
+     * @param pooled   the connection
+     */
+    private void release(PooledTransport pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+        permits.release();
+    }
+
+    /**
+     * Close a connection that failed and free its place in the pool
+     *
+     * @param pooled   the connection
+     */
+    private void invalidate(PooledTransport pooled) {
+        close(pooled);
+        permits.release();
+    }
+
+    /**
+     * Close a connection, ignoring errors
+     *
+     * @param pooled   the connection
+     */
+    private void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Failed to close SMTP connection", e);
+        }
+    }
+
+    /**
+     * Close all idle connections
+     */
+    public void close() {
+        PooledTransport pooled = idle.pollFirst();
+        while (pooled != null) {
+            close(pooled);
+            pooled = idle.pollFirst();
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private long lastUsed;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of how long a pipeline stage takes.
+ *
+ * Times fall into buckets whose upper bounds double from one microsecond
+ * up to about 17 seconds, with a last bucket for anything longer. Recording
+ * a time is a few atomic increments with no locking or allocation, so timers
+ * can stay on in production. Percentiles are reported as the upper bound of
+ * the bucket they fall in.
+ */
+public class StageTimer implements StageTimerMXBean {
+
+    private static final int BUCKETS = 26;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Create a StageTimer
+     *
+     * @param name   the name of the stage
+     */
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name of the stage
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record the time since a start time
+     *
+     * @param startNanos   the System.nanoTime() when the stage started
+     */
+    public void stop(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record how long the stage took
+     *
+     * @param nanos   the time in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 1);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros - 1), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the total time the stage took
+     *
+     * @return the sum in seconds
+     */
+    public double getSumSeconds() {
+        return sumNanos.get() / (NANOS_PER_MILLI * 1000);
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / NANOS_PER_MILLI / n;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileMillis(99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Get a percentile of the time the stage took
+     *
+     * @param percentile   the percentile, from 0 to 100
+     * @return the upper bound of the percentile's bucket in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= rank) {
+                return getUpperBoundSeconds(bucket) * 1000;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Get the number of buckets, including the last one with no upper bound
+     *
+     * @return the number of buckets
+     */
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Get the number of times recorded in a bucket
+     *
+     * @param bucket   the bucket
+     * @return the count
+     */
+    public long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Get the upper bound of a bucket
+     *
+     * @param bucket   the bucket
+     * @return the upper bound in seconds, or infinity for the last bucket
+     */
+    public double getUpperBoundSeconds(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (1L << bucket) / 1000000.0;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+/**
+ * JMX view of a StageTimer
+ */
+public interface StageTimerMXBean {
+
+    /**
+     * Get the number of times the stage ran
+     *
+     * @return the count
+     */
+    long getCount();
+
+    /**
+     * Get the mean time the stage took
+     *
+     * @return the mean in milliseconds
+     */
+    double getMeanMillis();
+
+    /**
+     * Get the median time the stage took
+     *
+     * @return the upper bound of the median's bucket in milliseconds
+     */
+    double getP50Millis();
+
+    /**
+     * Get the 99th percentile of the time the stage took
+     *
+     * @return the upper bound of the 99th percentile's bucket in milliseconds
+     */
+    double getP99Millis();
+
+    /**
+     * Get the longest time the stage took
+     *
+     * @return the maximum in milliseconds
+     */
+    double getMaxMillis();
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable record of which emails are being worked on.
+ *
+ * Each email is recorded when it is queued, when its reply has been sent
+ * and when it has been archived. Records are appended to memory-mapped
+ * segment files, so writing one is a copy into memory; the segment is
+ * flushed to disk on a timer. Each record carries a checksum so a record
+ * torn by a crash is ignored.
+ *
+ * On startup the segments are replayed to find the emails that were not
+ * finished. Those are carried forward into a new segment and the old
+ * segments are deleted, which also happens whenever a segment fills up.
+ * An email whose reply was sent but not recorded before a crash will be
+ * answered again; every other email is answered exactly once.
+ *
+ * Java has no supported way to unmap a file, so the mapping of a segment
+ * that has been rolled away from is released when the garbage collector
+ * frees its buffer. Until then it holds segmentSize bytes of address space
+ * and, on Windows, keeps its file from being deleted. Segments roll only
+ * when one fills up, so few mappings are ever waiting to be released.
+ */
+public class WorkJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_STRING_BYTES = 1000;
+
+    /**
+     * How far an email has got through the pipeline
+     */
+    public enum State {
+        ENQUEUED, REPLIED, ARCHIVED
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private final List<Entry> recovered;
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private boolean dirty;
+
+    /**
+     * Open a WorkJournal, replaying any segments left by an earlier run
+     *
+     * @param dir   the directory holding the segment files
+     * @param segmentSize   the size of each segment file in bytes
+     * @param syncInterval   milliseconds between flushes to disk
+     * @throws IOException   if the journal cannot be read or created
+     */
+    public WorkJournal(File dir, int segmentSize, long syncInterval) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + dir);
+        }
+        File[] segments = listSegments();
+        for (File file : segments) {
+            replay(file);
+        }
+        if (segments.length > 0) {
+            segmentNumber = parseSegmentNumber(segments[segments.length - 1]);
+        }
+        recovered = new ArrayList<Entry>(pending.values());
+        roll();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "email-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the emails an earlier run did not finish
+     *
+     * @return the unfinished emails found when the journal was opened
+     */
+    public List<Entry> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Record that an email was queued to be answered
+     *
+     * @param email   the email
+     */
+    public void enqueued(EmailMessage email) {
+        record(new Entry(State.ENQUEUED, email.getMailbox(), email.getUid(), getMessageId(email)));
+    }
+
+    /**
+     * Record that the reply to an email was sent
+     *
+     * @param email   the email
+     */
+    public void replied(EmailMessage email) {
+        record(new Entry(State.REPLIED, email.getMailbox(), email.getUid(), getMessageId(email)));
+    }
+
+    /**
+     * Record that an email has been archived, or otherwise needs no more work
+     *
+     * @param mailbox   the name of the mailbox the email was read from
+     * @param uid   the UID of the email
+     */
+    public void archived(String mailbox, long uid) {
+        record(new Entry(State.ARCHIVED, mailbox, uid, ""));
+    }
+
+    /**
+     * Flush the current segment to disk and stop the flush timer
+     */
+    public void close() {
+        scheduler.shutdown();
+        sync();
+    }
+
+    /**
+     * Append a record, rolling to a new segment if the current one is full
+     *
+     * @param entry   the record
+     */
+    private synchronized void record(Entry entry) {
+        String key = entry.getKey();
+        if (entry.state == State.ARCHIVED) {
+            if (pending.remove(key) == null) {
+                return;
+            }
+        } else {
+            pending.put(key, entry);
+        }
+        try {
+            if (!append(entry)) {
+                roll();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write work journal", e);
+        }
+    }
+
+    /**
+     * Write a record into the current segment
+     *
+     * The length is written last, so a record is only seen on replay once
+     * it is complete.
+     *
+     * @param entry   the record
+     * @return false if the segment does not have room for the record
+     */
+    private boolean append(Entry entry) {
+        byte[] payload = encode(entry);
+        int position = segment.position();
+        // leave room for the zero length that marks the end of the segment
+        if (position + HEADER_SIZE + payload.length + 4 > segment.capacity()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        segment.position(position + 4);
+        segment.putInt((int) crc.getValue());
+        segment.put(payload);
+        int end = segment.position();
+        segment.putInt(position, payload.length);
+        segment.position(end);
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Start a new segment holding the unfinished emails and delete the old ones
+     *
+     * @throws IOException   if the new segment cannot be created
+     */
+    private synchronized void roll() throws IOException {
+        if (segment != null) {
+            // the old mapping is released once its buffer is garbage collected
+            segment.force();
+        }
+        segmentNumber++;
+        File file = new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+        for (Entry entry : pending.values()) {
+            if (!append(entry)) {
+                throw new IOException("Journal segment size is too small for the unfinished emails");
+            }
+        }
+        segment.force();
+        dirty = false;
+
+        for (File old : listSegments()) {
+            if (parseSegmentNumber(old) < segmentNumber && !old.delete()) {
+                // on Windows a segment cannot be deleted while its old mapping is still held
+                logger.debug("Failed to delete journal segment " + old + ". Trying again on the next roll.");
+            }
+        }
+    }
+
+    /**
+     * Flush the current segment to disk if it has changed
+     *
+     * The flush runs outside the lock so that records can be appended while
+     * the disk catches up. Records appended during the flush mark the
+     * segment dirty again and go out with the next one.
+     */
+    private void sync() {
+        MappedByteBuffer dirtySegment;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            dirtySegment = segment;
+        }
+        dirtySegment.force();
+    }
+
+    /**
+     * Read the records of a segment into the pending emails
+     *
+     * @param file   the segment file
+     * @throws IOException   if the segment cannot be read
+     */
+    private void replay(File file) throws IOException {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = ByteBuffer.allocate((int) raf.length());
+            raf.getChannel().read(buffer, 0);
+        } finally {
+            raf.close();
+        }
+        buffer.flip();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Ignoring torn record at the end of journal segment " + file);
+                break;
+            }
+            Entry entry = decode(payload);
+            if (entry.state == State.ARCHIVED) {
+                pending.remove(entry.getKey());
+            } else {
+                pending.put(entry.getKey(), entry);
+            }
+        }
+    }
+
+    /**
+     * List the segment files in order
+     *
+     * @return the segment files, oldest first
+     */
+    private File[] listSegments() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Get the number of a segment from its file name
+     *
+     * @param file   the segment file
+     * @return the segment number
+     */
+    private long parseSegmentNumber(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Get the Message-ID of an email
+     *
+     * @param email   the email
+     * @return the Message-ID, or an empty string if it has none
+     */
+    private String getMessageId(EmailMessage email) {
+        String messageId = email.getMessageId();
+        return messageId == null ? "" : messageId;
+    }
+
+    /**
+     * Encode a record
+     *
+     * @param entry   the record
+     * @return the encoded record
+     */
+    private byte[] encode(Entry entry) {
+        byte[] mailbox = truncate(entry.mailbox.getBytes(UTF8));
+        byte[] messageId = truncate(entry.messageId.getBytes(UTF8));
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 2 + mailbox.length + 2 + messageId.length);
+        buffer.put((byte) entry.state.ordinal());
+        buffer.putLong(entry.uid);
+        buffer.putShort((short) mailbox.length);
+        buffer.put(mailbox);
+        buffer.putShort((short) messageId.length);
+        buffer.put(messageId);
+        return buffer.array();
+    }
+
+    /**
+     * Decode a record
+     *
+     * @param payload   the encoded record
+     * @return the record
+     */
+    private Entry decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        State state = State.values()[buffer.get()];
+        long uid = buffer.getLong();
+        byte[] mailbox = new byte[buffer.getShort()];
+        buffer.get(mailbox);
+        byte[] messageId = new byte[buffer.getShort()];
+        buffer.get(messageId);
+        return new Entry(state, new String(mailbox, UTF8), uid, new String(messageId, UTF8));
+    }
+
+    /**
+     * Cap the length of an encoded string
+     *
+     * @param bytes   the encoded string
+     * @return the first MAX_STRING_BYTES bytes
+     */
+    private byte[] truncate(byte[] bytes) {
+        return bytes.length <= MAX_STRING_BYTES ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    /**
+     * One email's record in the journal
+     */
+    public static class Entry {
+        private final State state;
+        private final String mailbox;
+        private final long uid;
+        private final String messageId;
+
+        private Entry(State state, String mailbox, long uid, String messageId) {
+            this.state = state;
+            this.mailbox = mailbox;
+            this.uid = uid;
+            this.messageId = messageId;
+        }
+
+        private String getKey() {
+            return mailbox + "/" + uid;
+        }
+
+        /**
+         * Get how far the email got
+         *
+         * @return the state
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Get the name of the mailbox the email was read from
+         *
+         * @return the mailbox name
+         */
+        public String getMailbox() {
+            return mailbox;
+        }
+
+        /**
+         * Get the UID of the email
+         *
+         * @return the UID
+         */
+        public long getUid() {
+            return uid;
+        }
+
+        /**
+         * Get the Message-ID of the email
+         *
+         * @return the Message-ID, or an empty string if it has none
+         */
+        public String getMessageId() {
+            return messageId;
+        }
+    }
+}
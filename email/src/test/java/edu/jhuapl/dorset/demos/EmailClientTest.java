@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.Application;
+import edu.jhuapl.dorset.agents.DateTimeAgent;
+import edu.jhuapl.dorset.routing.SingleAgentRouter;
+
+/**
+ * Load test of the EmailClient against an in-process mail server.
+ *
+ * By default a short run checks that every email is answered once. A load
+ * test is run by setting the number of emails, the rate they are delivered
+ * at, the consumer thread counts and IMAP pool sizes to try, and the timeout
+ * with the email.loadtest.messages, email.loadtest.rate,
+ * email.loadtest.consumerThreads, email.loadtest.imapPoolSize and
+ * email.loadtest.timeout system properties, for example
+ * -Demail.loadtest.messages=5000 -Demail.loadtest.rate=200 -Demail.loadtest.consumerThreads=1,2,4,8
+ * The client runs on virtual threads with -Demail.loadtest.executionMode=virtual
+ */
+public class EmailClientTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailClientTest.class);
+
+    private static final String MESSAGES_PROPERTY = "email.loadtest.messages";
+    private static final String RATE_PROPERTY = "email.loadtest.rate";
+    private static final String CONSUMER_THREADS_PROPERTY = "email.loadtest.consumerThreads";
+    private static final String IMAP_POOL_SIZE_PROPERTY = "email.loadtest.imapPoolSize";
+    private static final String TIMEOUT_PROPERTY = "email.loadtest.timeout";
+    private static final String EXECUTION_MODE_PROPERTY = "email.loadtest.executionMode";
+    private static final int DEFAULT_MESSAGES = 20;
+    private static final double DEFAULT_RATE = 100;
+    private static final String DEFAULT_CONSUMER_THREADS = "1,4";
+    private static final String DEFAULT_IMAP_POOL_SIZE = "1,2";
+    private static final long DEFAULT_TIMEOUT = 30000;
+
+    @Test
+    public void testAnswersEveryEmailOnce() throws Exception {
+        int messages = Integer.getInteger(MESSAGES_PROPERTY, DEFAULT_MESSAGES);
+        double rate = Double.parseDouble(System.getProperty(RATE_PROPERTY, String.valueOf(DEFAULT_RATE)));
+        long timeout = Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+        EmailLoadHarness harness = new EmailLoadHarness(
+                        new Application(new SingleAgentRouter(new DateTimeAgent())),
+                        System.getProperty(EXECUTION_MODE_PROPERTY, "platform"));
+        for (String poolSize : System.getProperty(IMAP_POOL_SIZE_PROPERTY, DEFAULT_IMAP_POOL_SIZE).split(",")) {
+            for (String threads : System.getProperty(CONSUMER_THREADS_PROPERTY, DEFAULT_CONSUMER_THREADS).split(",")) {
+                EmailLoadHarness.LoadReport report = harness.run(messages, rate, Integer.parseInt(threads.trim()),
+                                Integer.parseInt(poolSize.trim()), timeout);
+                logger.info(report.toString());
+                assertEquals(report.toString(), messages, report.getAnswered());
+                assertEquals(report.toString(), 0, report.getDuplicates());
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import com.icegreen.greenmail.store.StoredMessage;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import edu.jhuapl.dorset.Application;
+
+/**
+ * Runs the EmailClient against an in-process IMAP and SMTP server.
+ *
+ * Once the client is started, emails of several MIME shapes are delivered
+ * to its inbox at a steady rate: plain text, text with an HTML alternative,
+ * text with an attachment, and a reply quoting an earlier email. The
+ * latency of each email is the time from its delivery until the server
+ * received the reply to it. IMAP round trips are counted from the JavaMail
+ * debug output.
+ */
+public class EmailLoadHarness {
+
+    private static final String BOT_ADDRESS = "bot@localhost";
+    private static final String BOT_LOGIN = "bot";
+    private static final String BOT_PASSWORD = "secret";
+    private static final String SENDER_DOMAIN = "@localhost";
+    private static final int SENDERS = 10;
+    private static final int ATTACHMENT_SIZE = 100 * 1024;
+    private static final long POLL_INTERVAL = 20;
+
+    private final Application app;
+    private final String executionMode;
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * Create an EmailLoadHarness
+     *
+     * @param app   the Dorset application that answers the email
+     * @param executionMode   the executionMode setting of the client, platform or virtual
+     */
+    public EmailLoadHarness(Application app, String executionMode) {
+        this.app = app;
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * Run the client while emails are delivered, until every email is answered, and report
+     *
+     * @param messages   the number of emails to deliver
+     * @param rate   emails delivered per second, or 0 to deliver them as fast as possible
+     * @param consumerThreads   the number of consumer threads the client runs
+     * @param imapPoolSize   the number of IMAP connections the client keeps
+     * @param timeout   the longest time to wait for replies in milliseconds
+     * @return the results of the run
+     * @throws Exception   if the run cannot be set up
+     */
+    public LoadReport run(int messages, double rate, int consumerThreads, int imapPoolSize, long timeout)
+                    throws Exception {
+        GreenMail greenMail = new GreenMail(ServerSetupTest.SMTP_IMAP);
+        greenMail.start();
+        File journalDir = createTempDir();
+        CountingStream imapCommands = new CountingStream();
+        try {
+            GreenMailUser bot = greenMail.setUser(BOT_ADDRESS, BOT_LOGIN, BOT_PASSWORD);
+            long start = System.currentTimeMillis();
+            EmailClient client = new EmailClient(createConfig(consumerThreads, imapPoolSize, journalDir), app,
+                            new PrintStream(imapCommands, true));
+            Map<String, Long> delivered = new ConcurrentHashMap<String, Long>();
+            AtomicReference<Exception> deliveryError = new AtomicReference<Exception>();
+            Thread delivery = startDelivery(bot, messages, rate, delivered, deliveryError);
+            Set<String> answered = new HashSet<String>();
+            List<Long> latencies = new ArrayList<Long>();
+            long lastReply = start;
+            try {
+                long deadline = start + timeout;
+                while (answered.size() < messages && deliveryError.get() == null
+                                && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(POLL_INTERVAL);
+                    for (StoredMessage reply : getReplies(greenMail)) {
+                        String original = getReplyTo(reply.getMimeMessage());
+                        Long deliveredAt = delivered.get(original);
+                        if (deliveredAt != null && answered.add(original)) {
+                            long repliedAt = reply.getReceivedDate().getTime();
+                            latencies.add(repliedAt - deliveredAt);
+                            lastReply = Math.max(lastReply, repliedAt);
+                        }
+                    }
+                }
+            } finally {
+                delivery.interrupt();
+                delivery.join();
+                client.close();
+            }
+            if (deliveryError.get() != null) {
+                throw deliveryError.get();
+            }
+            int duplicates = getReplies(greenMail).size() - latencies.size();
+            return new LoadReport(messages, rate, consumerThreads, imapPoolSize, latencies, lastReply - start,
+                            duplicates, imapCommands.getCount());
+        } finally {
+            greenMail.stop();
+            deleteDir(journalDir);
+        }
+    }
+
+    /**
+     * Start a thread that delivers emails to the client's inbox at a steady rate
+     *
+     * @param bot   the client's account
+     * @param messages   the number of emails to deliver
+     * @param rate   emails per second, or 0 for as fast as possible
+     * @param delivered   the Message-ID of each email delivered, mapped to when it was delivered
+     * @param error   set if an email cannot be delivered
+     * @return the thread
+     */
+    private Thread startDelivery(final GreenMailUser bot, final int messages, final double rate,
+                    final Map<String, Long> delivered, final AtomicReference<Exception> error) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    for (int n = 0; n < messages; n++) {
+                        if (rate > 0) {
+                            long due = start + (long) (n * TimeUnit.SECONDS.toNanos(1) / rate);
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                        }
+                        MimeMessage msg = createMessage(n);
+                        // recorded first, as the client may answer before deliver returns
+                        delivered.put(msg.getMessageID(), System.currentTimeMillis());
+                        bot.deliver(msg);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        }, "email-delivery");
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Create the client configuration for the local server
+     *
+     * @param consumerThreads   the number of consumer threads
+     * @param imapPoolSize   the number of IMAP connections
+     * @param journalDir   the directory for the work journal
+     * @return the configuration
+     */
+    private Config createConfig(int consumerThreads, int imapPoolSize, File journalDir) {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("username", BOT_LOGIN);
+        settings.put("password", BOT_PASSWORD);
+        settings.put("mailStoreType", "imap");
+        settings.put("host", "localhost");
+        settings.put("from", BOT_ADDRESS);
+        settings.put("consumerThreads", String.valueOf(consumerThreads));
+        settings.put("executionMode", executionMode);
+        settings.put("watchMode", "poll");
+        settings.put("minPollInterval", "50");
+        settings.put("maxPollInterval", "200");
+        settings.put("archiveFlushInterval", "200");
+        settings.put("imapPoolSize", String.valueOf(imapPoolSize));
+        settings.put("journalDir", journalDir.getPath());
+        settings.put("mail.debug", "true");
+        settings.put("mail.imap.host", "localhost");
+        settings.put("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+        settings.put("mail.smtp.host", "localhost");
+        settings.put("mail.smtp.port", String.valueOf(ServerSetupTest.SMTP.getPort()));
+        return ConfigFactory.parseMap(settings);
+    }
+
+    /**
+     * Create a seed email
+     *
+     * @param n   the number of the email, which picks its sender and shape
+     * @return the email
+     * @throws MessagingException   if the email cannot be built
+     */
+    private MimeMessage createMessage(int n) throws MessagingException {
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress("sender" + (n % SENDERS) + SENDER_DOMAIN));
+        msg.setRecipient(Message.RecipientType.TO, new InternetAddress(BOT_ADDRESS));
+        msg.setSubject("What is the time?");
+        String text = "Hello,\n\nWhat is the time?\n\nThanks\n";
+        switch (n % 4) {
+            case 0:
+                msg.setText(text);
+                break;
+            case 1:
+                MimeMultipart alternative = new MimeMultipart("alternative");
+                alternative.addBodyPart(createPart(text, "text/plain"));
+                alternative.addBodyPart(createPart("<p>What is the time?</p>", "text/html"));
+                msg.setContent(alternative);
+                break;
+            case 2:
+                MimeMultipart mixed = new MimeMultipart();
+                mixed.addBodyPart(createPart(text, "text/plain"));
+                MimeBodyPart attachment = new MimeBodyPart();
+                attachment.setDataHandler(new DataHandler(
+                                new ByteArrayDataSource(new byte[ATTACHMENT_SIZE], "application/octet-stream")));
+                attachment.setFileName("data.bin");
+                mixed.addBodyPart(attachment);
+                msg.setContent(mixed);
+                break;
+            default:
+                msg.setSubject("Re: What is the date?");
+                msg.setHeader("In-Reply-To", "<earlier-" + n + SENDER_DOMAIN + ">");
+                msg.setText("What is the time?\n\nOn Monday, bot wrote:\n> Today is Monday.\n");
+                break;
+        }
+        msg.saveChanges();
+        return msg;
+    }
+
+    /**
+     * Create a text body part
+     *
+     * @param text   the content
+     * @param type   the MIME type of the content
+     * @return the body part
+     * @throws MessagingException   if the part cannot be built
+     */
+    private MimeBodyPart createPart(String text, String type) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(text, type + "; charset=us-ascii");
+        return part;
+    }
+
+    /**
+     * Get the Message-ID a reply from the client answers
+     *
+     * @param msg   a message held by the server
+     * @return the Message-ID, or null if the message is not a reply from the client
+     * @throws MessagingException   if the headers cannot be read
+     */
+    private String getReplyTo(MimeMessage msg) throws MessagingException {
+        if (msg.getFrom() == null || !BOT_ADDRESS.equals(((InternetAddress) msg.getFrom()[0]).getAddress())) {
+            return null;
+        }
+        return msg.getHeader("In-Reply-To", null);
+    }
+
+    /**
+     * Get the replies the client sent
+     *
+     * @param greenMail   the server
+     * @return the replies, with the time the server received each
+     * @throws MessagingException   if the headers cannot be read
+     */
+    private List<StoredMessage> getReplies(GreenMail greenMail) throws MessagingException {
+        List<StoredMessage> replies = new ArrayList<StoredMessage>();
+        for (StoredMessage msg : greenMail.getManagers().getImapHostManager().getAllMessages()) {
+            if (getReplyTo(msg.getMimeMessage()) != null) {
+                replies.add(msg);
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Create an empty temporary directory
+     *
+     * @return the directory
+     * @throws Exception   if the directory cannot be created
+     */
+    private File createTempDir() throws Exception {
+        File dir = File.createTempFile("email-journal", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IllegalStateException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Delete a directory and the files in it
+     *
+     * @param dir   the directory
+     */
+    private void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Swallows the JavaMail debug output, counting the IMAP commands in it
+     */
+    private static class CountingStream extends OutputStream {
+        // commands are sent with a tag such as A12, and tagged responses are OK, NO or BAD
+        private static final Pattern COMMAND = Pattern.compile("^A\\d+ (?!OK|NO|BAD)\\S.*");
+
+        private final StringBuilder line = new StringBuilder();
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                if (COMMAND.matcher(line).matches()) {
+                    count.incrementAndGet();
+                }
+                line.setLength(0);
+            } else if (line.length() < 200) {
+                line.append((char) b);
+            }
+        }
+
+        private long getCount() {
+            return count.get();
+        }
+    }
+
+    /**
+     * The results of one run
+     */
+    public static class LoadReport {
+        private final int messages;
+        private final double rate;
+        private final int consumerThreads;
+        private final int imapPoolSize;
+        private final long[] latencies;
+        private final long elapsed;
+        private final int duplicates;
+        private final long imapCommands;
+
+        private LoadReport(int messages, double rate, int consumerThreads, int imapPoolSize, List<Long> latencies,
+                        long elapsed, int duplicates, long imapCommands) {
+            this.messages = messages;
+            this.rate = rate;
+            this.consumerThreads = consumerThreads;
+            this.imapPoolSize = imapPoolSize;
+            this.latencies = new long[latencies.size()];
+            for (int n = 0; n < this.latencies.length; n++) {
+                this.latencies[n] = latencies.get(n);
+            }
+            Arrays.sort(this.latencies);
+            this.elapsed = elapsed;
+            this.duplicates = duplicates;
+            this.imapCommands = imapCommands;
+        }
+
+        /**
+         * Get the number of emails that were answered
+         *
+         * @return the number of answered emails
+         */
+        public int getAnswered() {
+            return latencies.length;
+        }
+
+        /**
+         * Get the number of emails that were answered more than once
+         *
+         * @return the number of extra replies
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Get the time from delivering an email until the server received its reply
+         *
+         * @param percentile   the percentile, from 0 to 100
+         * @return the latency in milliseconds
+         */
+        public long getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        /**
+         * Get the rate replies were sent at
+         *
+         * @return replies per second
+         */
+        public double getRepliesPerSecond() {
+            return elapsed == 0 ? 0 : latencies.length * 1000.0 / elapsed;
+        }
+
+        /**
+         * Get the number of IMAP commands sent per email
+         *
+         * @return IMAP round trips per email
+         */
+        public double getImapRoundTripsPerMessage() {
+            return messages == 0 ? 0 : (double) imapCommands / messages;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rate=%.1f/sec consumerThreads=%d imapPoolSize=%d answered=%d/%d duplicates=%d"
+                            + " replies/sec=%.1f latency p50=%dms p90=%dms p99=%dms max=%dms imapRoundTrips/msg=%.2f",
+                            rate, consumerThreads, imapPoolSize, getAnswered(), messages, duplicates,
+                            getRepliesPerSecond(),
+                            getLatency(50), getLatency(90), getLatency(99), getLatency(100),
+                            getImapRoundTripsPerMessage());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+/**
+ * Tests of the per sender limit of the EmailQueue.
+ */
+public class EmailQueueTest {
+
+    private static final int CAPACITY = 5;
+    private static final int MAX_PER_SENDER = 2;
+
+    private final Session session = Session.getInstance(new Properties());
+    private long uid;
+
+    @Test
+    public void testFloodFromOneSenderFillsTheQueue() throws Exception {
+        EmailQueue queue = new EmailQueue(CAPACITY, MAX_PER_SENDER);
+        for (int n = 0; n < CAPACITY; n++) {
+            assertTrue(queue.offerMessage(createMessage("flood@localhost"), 0, TimeUnit.MILLISECONDS));
+        }
+
+        assertEquals(CAPACITY - MAX_PER_SENDER, queue.getHeldBackCount());
+        assertEquals(CAPACITY, queue.getDepth());
+        // the client fetches at most the remaining capacity, so fetching stops
+        assertEquals(0, queue.remainingCapacity());
+        assertFalse(queue.offerMessage(createMessage("flood@localhost"), 0, TimeUnit.MILLISECONDS));
+        assertFalse(queue.offerMessage(createMessage("other@localhost"), 0, TimeUnit.MILLISECONDS));
+
+        queue.removeMessageIfAny();
+        assertEquals(1, queue.remainingCapacity());
+        assertEquals(CAPACITY - MAX_PER_SENDER - 1, queue.getHeldBackCount());
+    }
+
+    @Test
+    public void testOtherSendersAreNotHeldBehindAFlood() throws Exception {
+        EmailQueue queue = new EmailQueue(CAPACITY, MAX_PER_SENDER);
+        EmailMessage[] flood = new EmailMessage[CAPACITY - 1];
+        for (int n = 0; n < flood.length; n++) {
+            flood[n] = createMessage("flood@localhost");
+            queue.putMessage(flood[n]);
+        }
+        EmailMessage other = createMessage("other@localhost");
+        queue.putMessage(other);
+
+        assertEquals(flood[0], queue.removeMessageIfAny());
+        assertEquals(other, queue.removeMessageIfAny());
+        for (int n = 1; n < flood.length; n++) {
+            assertEquals(flood[n], queue.removeMessageIfAny());
+        }
+        assertEquals(CAPACITY, queue.remainingCapacity());
+    }
+
+    private EmailMessage createMessage(String sender) throws MessagingException {
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress(sender));
+        msg.setSubject("What is the time?");
+        msg.setText("What is the time?");
+        msg.saveChanges();
+        return new EmailMessage("bot", ++uid, msg, "What is the time?", 0);
+    }
+}
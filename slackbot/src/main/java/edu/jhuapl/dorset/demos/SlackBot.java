@@ -41,10 +41,15 @@ import edu.jhuapl.dorset.Response;
  * invited and it will automatically accept. To invite a bot, just 
  * type it's name in the new channel @botname and you will be asked to
  * invite the bot.
+ * 
+ * Without an executor, messages are answered one at a time on the Slack
+ * session's thread. With a MessageExecutor, each message is answered on
+ * the executor, so a slow agent does not hold up the messages behind it.
  */
 public class SlackBot {
     private SlackSession session = null;
     private Application application = null;
+    private MessageExecutor executor = null;
 
     private SlackMessagePostedListener messagePostedListener = null;
 
@@ -56,6 +61,15 @@ public class SlackBot {
         this.application = application;
     }
 
+    /**
+     * @param application Application for Dorset-Framework
+     * @param executor MessageExecutor that messages are answered on
+     */
+    public SlackBot(Application application, MessageExecutor executor) {
+        this.application = application;
+        this.executor = executor;
+    }
+
     /**
      * Connects to Slack using the apiToken
      * 
@@ -98,12 +112,11 @@ public class SlackBot {
                         return;
                     }
                     messageContent = messageContent.replaceAll(userId, "").trim();
-                    Request request = new Request(messageContent);
-                    Response response = application.process(request);
-                    String prefix = channelOnWhichMessageWasPosted.isDirect() ? ""
-                                    : ("@" + messageSender.getUserName());
-                    session.sendMessage(channelOnWhichMessageWasPosted,
-                                    prefix + " " + response.getText());
+                    if (executor == null) {
+                        reply(session, channelOnWhichMessageWasPosted, messageSender, messageContent);
+                    } else {
+                        answerLater(session, channelOnWhichMessageWasPosted, messageSender, messageContent);
+                    }
                 }
             };
             session.addMessagePostedListener(messagePostedListener);
@@ -111,6 +124,43 @@ public class SlackBot {
 
     }
 
+    /**
+     * Hands a message to the executor, waiting if too many are in flight
+     * 
+     * @param session  Slack session to reply on
+     * @param channel  Channel the message was posted on
+     * @param sender  User who sent the message
+     * @param text  Text of the message
+     */
+    private void answerLater(final SlackSession session, final SlackChannel channel,
+                    final SlackUser sender, final String text) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reply(session, channel, sender, text);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks the Dorset application for an answer and posts it
+     * 
+     * @param session  Slack session to reply on
+     * @param channel  Channel the message was posted on
+     * @param sender  User who sent the message
+     * @param text  Text of the message
+     */
+    private void reply(SlackSession session, SlackChannel channel, SlackUser sender, String text) {
+        Request request = new Request(text);
+        Response response = application.process(request);
+        String prefix = channel.isDirect() ? "" : ("@" + sender.getUserName());
+        session.sendMessage(channel, prefix + " " + response.getText());
+    }
+
     /**
      * returns the list of channels
      * 
@@ -29,6 +29,11 @@ import edu.jhuapl.dorset.routing.SingleAgentRouter;
 
 public class SlackBotDemo {
 
+    private static final String DEFAULT_THREADS = "4";
+    private static final String DEFAULT_MAX_CONCURRENT_MESSAGES = "1000";
+
+    private Properties properties;
+
     /**
      * Get Slack API Token
      * 
@@ -36,11 +41,57 @@ public class SlackBotDemo {
      * @throws IOException IOException while getting API token
      */
     public String getSlackApiToken() throws IOException {
-        Properties properties = new Properties();
-        try (InputStream in = SlackBot.class.getResourceAsStream("/slackbot.properties")) {
-            properties.load(in);
+        return getProperties().getProperty("slackBotToken");
+    }
+
+    /**
+     * Create the executor messages are answered on
+     * 
+     * @return the executor or null if executionMode is not set
+     * @throws IOException IOException while reading the properties
+     */
+    public MessageExecutor createExecutor() throws IOException {
+        Properties properties = getProperties();
+        String mode = properties.getProperty("executionMode");
+        if (mode == null) {
+            return null;
         }
-        return properties.getProperty("slackBotToken");
+        return new MessageExecutor("slack-answer", MessageExecutor.Mode.parse(mode),
+                        Integer.parseInt(properties.getProperty("threads", DEFAULT_THREADS)),
+                        Integer.parseInt(properties.getProperty("maxConcurrentMessages",
+                                        DEFAULT_MAX_CONCURRENT_MESSAGES)));
+    }
+
+    /**
+     * Wrap the router so agents' answers are cached, if answerCacheSize is set
+     * 
+     * @param router  Router of the Dorset application
+     * @return the caching router or the router itself if caching is off
+     * @throws IOException IOException while reading the properties
+     */
+    public Router cacheAnswers(Router router) throws IOException {
+        AnswerCache cache = AnswerCache.create(getProperties(), "");
+        if (cache == null) {
+            return router;
+        }
+        cache.registerMBean("slackbot");
+        return cache.wrap(router);
+    }
+
+    /**
+     * Load slackbot.properties
+     * 
+     * @return the properties
+     * @throws IOException IOException while reading the properties
+     */
+    private Properties getProperties() throws IOException {
+        if (properties == null) {
+            properties = new Properties();
+            try (InputStream in = SlackBot.class.getResourceAsStream("/slackbot.properties")) {
+                properties.load(in);
+            }
+        }
+        return properties;
     }
 
     /**
@@ -50,16 +101,16 @@ public class SlackBotDemo {
      * @throws IOException IOException 
      */
     public static void main(String[] args) throws IOException {
+        SlackBotDemo demo = new SlackBotDemo();
         Agent agent = new EchoAgent();
-        Router router = new SingleAgentRouter(agent);
+        Router router = demo.cacheAnswers(new SingleAgentRouter(agent));
         Application app = new Application(router);
 
-        SlackBotDemo demo = new SlackBotDemo();
         System.out.println("SlackBot Echo Test.");
         System.out.println("");
         String apiToken = demo.getSlackApiToken();
 
-        SlackBot slackBot = new SlackBot(app);
+        SlackBot slackBot = new SlackBot(app, demo.createExecutor());
         slackBot.connectToSlack(apiToken);
         Collection<String> channels = slackBot.getChannels();
         System.out.println("Channels listing:");
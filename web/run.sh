@@ -2,5 +2,5 @@
 
 DIR=`dirname $0`
 JAR=$(find $DIR/target/ -name 'web*.war')
-java -jar $JAR "$@"
+java $JAVA_OPTS -jar $JAR "$@"
 
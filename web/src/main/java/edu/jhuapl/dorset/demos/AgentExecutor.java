@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Dorset requests off the web server's threads
+ * 
+ * A fixed number of threads work through a bounded queue of requests, so
+ * slow agents cannot use up the web server's threads, and a request that
+ * cannot be queued is turned away instead of waiting. Each request has a
+ * deadline after which its caller stops waiting.
+ */
+public class AgentExecutor {
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+
+    /**
+     * Create an AgentExecutor
+     * 
+     * @param threads  Number of threads running requests
+     * @param queueSize  Number of requests that can wait for a thread
+     * @param timeout  Deadline of each request in milliseconds
+     */
+    public AgentExecutor(int threads, int queueSize, long timeout) {
+        this.timeout = timeout;
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, "dorset-agent-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
+    /**
+     * Queue a request
+     * 
+     * @param task  Task that processes the request
+     * @return Future that can cancel the task
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Gets the deadline of each request
+     * 
+     * @return deadline in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Stop the threads, interrupting requests still running
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -16,15 +16,25 @@
  */
 package edu.jhuapl.dorset.demos;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 
 import edu.jhuapl.dorset.Application;
 import edu.jhuapl.dorset.agents.Agent;
 import edu.jhuapl.dorset.agents.DateTimeAgent;
 import edu.jhuapl.dorset.agents.DuckDuckGoAgent;
 import edu.jhuapl.dorset.config.MultiValuedMap;
-import edu.jhuapl.dorset.http.apache.ApacheHttpClient;
 import edu.jhuapl.dorset.routing.ChainedRouter;
 import edu.jhuapl.dorset.routing.KeywordRouter;
 import edu.jhuapl.dorset.routing.Router;
@@ -35,9 +45,52 @@ import edu.jhuapl.dorset.routing.SingleAgentRouter;
  * Initialize resources for the Dorset api
  * 
  * This uses Jersey's default dependency injection framework.
+ * 
+ * Setting the system property dorset.web.async to true turns on async mode,
+ * in which requests are processed on a bounded executor with a deadline
+ * rather than on the web server's threads. The executor is sized with the
+ * dorset.web.agentThreads and dorset.web.agentQueueSize properties and the
+ * deadline in milliseconds is set with dorset.web.requestTimeout.
+ * 
+ * Setting dorset.web.parallelRouting to true runs the date/time and
+ * Wikipedia agents at the same time, keeping the date/time agent's answer
+ * when it has one. dorset.web.routingThreads limits the threads they use.
+ * 
+ * Setting dorset.web.answerCacheSize caches the Wikipedia agent's answers
+ * in up to that many bytes, for dorset.web.answerCacheTtl milliseconds.
+ * 
+ * Identical requests in flight to an agent at the same time share one
+ * answer unless dorset.web.singleFlight is set to false.
+ * 
+ * The network agents share the http client set up by SharedHttpClient.
+ * 
+ * The agents whose class names are listed in dorset.web.resilientAgents
+ * are given a deadline, hedged calls and a circuit breaker. Their settings
+ * are read from dorset.web.agent.[class name].deadline, hedgeDelay,
+ * failureThreshold and openTime.
  */
 public class AppInitializer extends ResourceConfig {
+    public static final String ASYNC_KEY = "dorset.web.async";
+    public static final String AGENT_THREADS_KEY = "dorset.web.agentThreads";
+    public static final String AGENT_QUEUE_SIZE_KEY = "dorset.web.agentQueueSize";
+    public static final String REQUEST_TIMEOUT_KEY = "dorset.web.requestTimeout";
+    private static final int DEFAULT_AGENT_THREADS = 16;
+    private static final int DEFAULT_AGENT_QUEUE_SIZE = 100;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+    public static final String PARALLEL_ROUTING_KEY = "dorset.web.parallelRouting";
+    public static final String ROUTING_THREADS_KEY = "dorset.web.routingThreads";
+    private static final int DEFAULT_ROUTING_THREADS = 32;
+    public static final String SINGLE_FLIGHT_KEY = "dorset.web.singleFlight";
+    public static final String RESILIENT_AGENTS_KEY = "dorset.web.resilientAgents";
+    public static final String AGENT_SETTINGS_PREFIX = "dorset.web.agent.";
+    public static final String AGENT_CALL_THREADS_KEY = "dorset.web.agentCallThreads";
+    private static final int DEFAULT_AGENT_CALL_THREADS = 64;
+
     private final Application app;
+    private SharedHttpClient httpClient;
+    private ThreadPoolExecutor routingExecutor;
+    private ThreadPoolExecutor agentCallExecutor;
+    private AgentExecutor agentExecutor;
 
     /**
      * Create the app and bind it for injection
@@ -56,10 +109,106 @@ public class AppInitializer extends ResourceConfig {
             }
         });
 
+        if (Boolean.getBoolean(ASYNC_KEY)) {
+            registerAsync();
+        }
+
+        // This stops the threads started for the application when the
+        // web application is stopped.
+        register(new ContainerLifecycleListener() {
+            @Override
+            public void onStartup(Container container) {}
+
+            @Override
+            public void onReload(Container container) {}
+
+            @Override
+            public void onShutdown(Container container) {
+                shutdown();
+            }
+        });
+
         // uncomment for logging requests and responses at the INFO level
         // registerInstances(new LoggingFilter(Logger.getLogger("org.glassfish.jersey"), true));
     }
 
+    /**
+     * Registers the asynchronous web service in place of the synchronous one
+     */
+    private void registerAsync() {
+        agentExecutor = new AgentExecutor(
+                        Math.max(Integer.getInteger(AGENT_THREADS_KEY, DEFAULT_AGENT_THREADS), 1),
+                        Math.max(Integer.getInteger(AGENT_QUEUE_SIZE_KEY, DEFAULT_AGENT_QUEUE_SIZE), 1),
+                        Long.getLong(REQUEST_TIMEOUT_KEY, DEFAULT_REQUEST_TIMEOUT));
+        register(new AbstractBinder() {
+            @Override
+            protected void configure() {
+                bind(agentExecutor).to(AgentExecutor.class);
+            }
+        });
+        register(AsyncWebService.class);
+
+        // The filter sends api/request to the async service so that
+        // clients do not need to change.
+        register(AsyncRequestFilter.class);
+    }
+
+    /**
+     * Stops the executors and the http client's connection eviction
+     */
+    private void shutdown() {
+        if (agentExecutor != null) {
+            agentExecutor.shutdown();
+        }
+        if (routingExecutor != null) {
+            routingExecutor.shutdownNow();
+        }
+        if (agentCallExecutor != null) {
+            agentCallExecutor.shutdownNow();
+        }
+        httpClient.close();
+    }
+
+    /**
+     * Gives an agent a deadline, hedged calls and a circuit breaker if it is
+     * listed in dorset.web.resilientAgents
+     * 
+     * @param agent  Agent to guard
+     * @return the guarded agent, or the agent itself if it is not listed
+     */
+    private Agent makeResilient(Agent agent) {
+        String name = agent.getClass().getSimpleName();
+        List<String> names = Arrays.asList(System.getProperty(RESILIENT_AGENTS_KEY, "").split("\\s*,\\s*"));
+        if (!names.contains(name)) {
+            return agent;
+        }
+        if (agentCallExecutor == null) {
+            agentCallExecutor = createExecutor("dorset-agent-call",
+                            Integer.getInteger(AGENT_CALL_THREADS_KEY, DEFAULT_AGENT_CALL_THREADS));
+        }
+        return new ResilientAgent(agent, agentCallExecutor,
+                        ResilientAgent.Settings.create(System.getProperties(), AGENT_SETTINGS_PREFIX + name + "."));
+    }
+
+    /**
+     * Creates threads for running agents that start when they are needed
+     * 
+     * When they are all busy, new tasks are rejected.
+     */
+    private ThreadPoolExecutor createExecutor(final String name, int threads) {
+        return new ThreadPoolExecutor(0, Math.max(threads, 1), 60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+
     /**
      * Prepares the agents and routers for the Dorset application
      */
@@ -71,17 +220,58 @@ public class AppInitializer extends ResourceConfig {
         timeAgentParams.addString(KeywordRouter.KEYWORDS, "date");
         timeAgentParams.addString(KeywordRouter.KEYWORDS, "day");
         RouterAgentConfig kwConfig = RouterAgentConfig.create();
-        kwConfig.add(new DateTimeAgent(), timeAgentParams);
+        Agent timeAgent = makeResilient(new DateTimeAgent());
+        kwConfig.add(timeAgent, timeAgentParams);
         Router kwRouter = new KeywordRouter(kwConfig);
 
         // Our second agent uses the search engine DuckDuckGo to access Wikipedia.
         // We use a single agent router which will route everything to the wikipedia agent.
-        Agent wikiAgent = new DuckDuckGoAgent(new ApacheHttpClient());
+        // Network agents share one http client so they share its pool of
+        // kept-alive connections and its timeouts.
+        httpClient = new SharedHttpClient();
+        httpClient.registerMBean();
+        Agent wikiAgent = makeResilient(new DuckDuckGoAgent(httpClient.getClient()));
         Router wikiRouter = new SingleAgentRouter(wikiAgent);
 
+        // The routers are wrapped before they are chained so that each agent's
+        // answers are cached on their own. The date/time agent is never cached.
+        AnswerCache cache = AnswerCache.create(System.getProperties(), "dorset.web.");
+        if (cache != null) {
+            cache.registerMBean("web");
+            kwRouter = cache.wrap(kwRouter);
+            wikiRouter = cache.wrap(wikiRouter);
+            // these are the agents the wrapped routers route to
+            timeAgent = cache.wrap(timeAgent);
+            wikiAgent = cache.wrap(wikiAgent);
+        }
+
+        // Identical requests that arrive together wait for the first one's
+        // answer rather than each going to DuckDuckGo. Requests match as
+        // they do for the cache.
+        if (!"false".equals(System.getProperty(SINGLE_FLIGHT_KEY))) {
+            SingleFlight singleFlight = new SingleFlight(0,
+                            cache != null ? cache.getKeys() : new RequestKeys());
+            kwRouter = singleFlight.wrap(kwRouter);
+            wikiRouter = singleFlight.wrap(wikiRouter);
+            timeAgent = singleFlight.wrap(timeAgent);
+            wikiAgent = singleFlight.wrap(wikiAgent);
+        }
+
         // We chain the routers so that the keyword router runs first and then
         // falls back to wikipedia agent.
-        Router mainRouter = new ChainedRouter(kwRouter, wikiRouter);
+        Router mainRouter;
+        if (Boolean.getBoolean(PARALLEL_ROUTING_KEY)) {
+            // Both agents only look things up, so both can run speculatively.
+            // The date/time agent's answer wins when it has one.
+            // When its threads are all busy, agents run on the request's own thread.
+            routingExecutor = createExecutor("dorset-routing",
+                            Integer.getInteger(ROUTING_THREADS_KEY, DEFAULT_ROUTING_THREADS));
+            mainRouter = new ParallelChainedRouter(routingExecutor,
+                            new HashSet<Agent>(Arrays.asList(timeAgent, wikiAgent)),
+                            kwRouter, wikiRouter);
+        } else {
+            mainRouter = new ChainedRouter(kwRouter, wikiRouter);
+        }
 
         // We return this as the router to initialize the Dorset application with.
         return mainRouter;
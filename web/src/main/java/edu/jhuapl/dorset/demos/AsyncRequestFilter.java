@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Sends requests for Dorset's synchronous request service to the asynchronous one
+ * 
+ * This lets clients keep using api/request when async mode is on.
+ */
+@PreMatching
+public class AsyncRequestFilter implements ContainerRequestFilter {
+    private static final String SYNC_PATH = "request";
+    private static final String ASYNC_PATH = "async/request";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        UriInfo uriInfo = requestContext.getUriInfo();
+        String path = uriInfo.getPath();
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (SYNC_PATH.equals(path)) {
+            requestContext.setRequestUri(uriInfo.getBaseUri(), uriInfo.getBaseUriBuilder().path(ASYNC_PATH)
+                            .replaceQuery(uriInfo.getRequestUri().getRawQuery()).build());
+        }
+    }
+}
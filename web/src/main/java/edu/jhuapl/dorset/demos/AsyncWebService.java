@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.Application;
+import edu.jhuapl.dorset.rest.WebRequest;
+import edu.jhuapl.dorset.rest.WebService;
+
+/**
+ * Asynchronous version of Dorset's request web service
+ * 
+ * The web server thread is released as soon as the request is queued on
+ * the AgentExecutor. The answer is the same as the synchronous service's,
+ * unless the request is turned away because the queue is full or misses
+ * its deadline, in which case an error response is returned.
+ */
+@Path("/async")
+public class AsyncWebService {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncWebService.class);
+
+    private static final String BUSY_MESSAGE = "The server is busy. Please try again.";
+    private static final String TIMEOUT_MESSAGE = "The request took too long to answer. Please try again.";
+
+    private final WebService webService;
+    private final AgentExecutor executor;
+
+    /**
+     * Create the web service
+     * 
+     * @param app  Dorset application that answers the requests
+     * @param executor  Executor the requests run on
+     */
+    @Inject
+    public AsyncWebService(Application app, AgentExecutor executor) {
+        this.webService = new WebService(app);
+        this.executor = executor;
+    }
+
+    /**
+     * Process a request
+     * 
+     * @param request  Request from the web client
+     * @param asyncResponse  Response resumed when the answer is ready
+     */
+    @POST
+    @Path("/request")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void process(final WebRequest request, @Suspended final AsyncResponse asyncResponse) {
+        final AtomicReference<Future<?>> task = new AtomicReference<Future<?>>();
+        asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+            @Override
+            public void handleTimeout(AsyncResponse response) {
+                Future<?> future = task.get();
+                if (future != null) {
+                    future.cancel(true);
+                }
+                logger.warn("Request timed out: " + request.getText());
+                response.resume(error(TIMEOUT_MESSAGE));
+            }
+        });
+        asyncResponse.setTimeout(executor.getTimeout(), TimeUnit.MILLISECONDS);
+        try {
+            task.set(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // skip requests that timed out while waiting in the queue
+                    if (asyncResponse.isDone()) {
+                        return;
+                    }
+                    try {
+                        asyncResponse.resume(webService.process(request));
+                    } catch (RuntimeException e) {
+                        asyncResponse.resume(e);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Request turned away because the queue is full: " + request.getText());
+            asyncResponse.resume(error(BUSY_MESSAGE));
+        }
+    }
+
+    /**
+     * Create an error response in the form the web client reads
+     * 
+     * @param message  Message shown to the user
+     * @return the response
+     */
+    private Response error(String message) {
+        return Response.ok("{\"type\":\"error\",\"error\":{\"message\":\"" + message + "\"}}",
+                        MediaType.APPLICATION_JSON_TYPE).build();
+    }
+}
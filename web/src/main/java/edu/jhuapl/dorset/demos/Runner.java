@@ -16,10 +16,22 @@
  */
 package edu.jhuapl.dorset.demos;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.security.ProtectionDomain;
+import java.util.Properties;
 
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.servlets.gzip.GzipHandler;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
@@ -27,9 +39,27 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
  * This is used to run the embedded web server.
  * Usually, you will just want to deploy a web application to a container
  * server like Tomcat.
+ * 
+ * Passing a properties file after the port runs the server in server mode,
+ * for running the jar directly behind a load balancer. The file sizes the
+ * thread pool and its queue, tunes the connector, turns on gzip and sets
+ * how long shutdown waits for requests in progress. See server.properties
+ * for the settings and their defaults.
  */
 public class Runner {
-    
+    private static final int DEFAULT_MAX_THREADS = 200;
+    private static final int DEFAULT_MIN_THREADS = 8;
+    private static final int DEFAULT_THREAD_IDLE_TIMEOUT = 60000;
+    private static final int DEFAULT_MAX_QUEUED_REQUESTS = 1000;
+    private static final int DEFAULT_ACCEPTORS = -1;
+    private static final int DEFAULT_SELECTORS = -1;
+    private static final int DEFAULT_ACCEPT_QUEUE_SIZE = 0;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    private static final int DEFAULT_GZIP_MIN_SIZE = 256;
+    private static final String DEFAULT_GZIP_MIME_TYPES = "application/json,text/html,text/plain,text/css,"
+                    + "application/javascript";
+    private static final long DEFAULT_STOP_TIMEOUT = 30000;
+
     /**
      * Runner
      * 
@@ -44,13 +74,17 @@ public class Runner {
         if (args.length > 0) {
             port = Integer.parseInt(args[0]);
         }
+        Properties config = null;
+        if (args.length > 1) {
+            config = loadConfig(args[1]);
+        }
         if (port == 80) {
             System.out.println("Dorset web demo running on http://localhost/");            
         } else {
             System.out.println("Dorset web demo running on http://localhost:" 
                             + String.valueOf(port) + "/");
         }
-        Server server = new Server(port);
+        Server server = config == null ? new Server(port) : createServer(port, config);
 
         WebAppContext context = new WebAppContext();
         context.setServer(server);
@@ -62,8 +96,89 @@ public class Runner {
         URL location = protectionDomain.getCodeSource().getLocation();
         context.setWar(location.toExternalForm());
 
-        server.setHandler(context);
+        server.setHandler(config == null ? context : wrapHandler(context, config));
         server.start();
         server.join();
     }
+
+    /**
+     * Create a server tuned by the server mode settings
+     * 
+     * @param port  Port to listen on
+     * @param config  Server mode settings
+     * @return the server
+     */
+    private static Server createServer(int port, Properties config) {
+        int maxThreads = getInt(config, "maxThreads", DEFAULT_MAX_THREADS);
+        int minThreads = Math.min(getInt(config, "minThreads", DEFAULT_MIN_THREADS), maxThreads);
+        int maxQueued = getInt(config, "maxQueuedRequests", DEFAULT_MAX_QUEUED_REQUESTS);
+        // requests beyond the queue's capacity are rejected instead of piling up
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads,
+                        getInt(config, "threadIdleTimeout", DEFAULT_THREAD_IDLE_TIMEOUT),
+                        new BlockingArrayQueue<Runnable>(minThreads, minThreads, maxQueued));
+        threadPool.setName("jetty");
+        Server server = new Server(threadPool);
+
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        httpConfig.setSendServerVersion(false);
+        ServerConnector connector = new ServerConnector(server, getInt(config, "acceptors", DEFAULT_ACCEPTORS),
+                        getInt(config, "selectors", DEFAULT_SELECTORS), new HttpConnectionFactory(httpConfig));
+        connector.setPort(port);
+        connector.setAcceptQueueSize(getInt(config, "acceptQueueSize", DEFAULT_ACCEPT_QUEUE_SIZE));
+        // keep-alive connections are closed after this long without a request
+        connector.setIdleTimeout(getLong(config, "idleTimeout", DEFAULT_IDLE_TIMEOUT));
+        server.addConnector(connector);
+
+        // stop accepting connections on shutdown and give requests in
+        // progress up to the stop timeout to finish
+        server.setStopTimeout(getLong(config, "stopTimeout", DEFAULT_STOP_TIMEOUT));
+        server.setStopAtShutdown(true);
+        return server;
+    }
+
+    /**
+     * Wrap the web application in the server mode handlers
+     * 
+     * @param handler  Handler of the web application
+     * @param config  Server mode settings
+     * @return the outermost handler
+     */
+    private static Handler wrapHandler(Handler handler, Properties config) {
+        if (Boolean.parseBoolean(config.getProperty("gzip", "true"))) {
+            GzipHandler gzip = new GzipHandler();
+            gzip.setMinGzipSize(getInt(config, "gzipMinSize", DEFAULT_GZIP_MIN_SIZE));
+            gzip.setMimeTypes(config.getProperty("gzipMimeTypes", DEFAULT_GZIP_MIME_TYPES));
+            gzip.setHandler(handler);
+            handler = gzip;
+        }
+        // counts requests in progress so that shutdown can wait for them
+        StatisticsHandler statistics = new StatisticsHandler();
+        statistics.setHandler(handler);
+        return statistics;
+    }
+
+    /**
+     * Load the server mode settings
+     * 
+     * @param path  Path of the properties file
+     * @return the settings
+     * @throws IOException IOException while reading the file
+     */
+    private static Properties loadConfig(String path) throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            config.load(in);
+        }
+        return config;
+    }
+
+    private static int getInt(Properties config, String key, int defaultValue) {
+        String value = config.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long getLong(Properties config, String key, long defaultValue) {
+        String value = config.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhuapl.dorset.http.HttpClient;
+import edu.jhuapl.dorset.http.apache.ApacheHttpClient;
+
+/**
+ * The http client shared by the network agents of the web demo
+ * 
+ * Dorset's ApacheHttpClient sends its requests through the connection pool
+ * of Apache's fluent API, which keeps connections alive between requests.
+ * This sets the client's connect and read timeouts so a hung server cannot
+ * hold a thread forever, and sizes the pool. The fluent API does not expose
+ * its pool, so it is found by reflection. If that fails, the pool keeps its
+ * defaults of 200 connections and 100 per host.
+ * 
+ * Connections idle for longer than the idle timeout are closed, so the pool
+ * does not hold connections that the server has already given up on.
+ * 
+ * The settings are read from system properties:
+ * dorset.web.http.maxTotal, dorset.web.http.maxPerRoute,
+ * dorset.web.http.connectTimeout, dorset.web.http.readTimeout and
+ * dorset.web.http.idleTimeout, with the times in milliseconds.
+ */
+public class SharedHttpClient implements SharedHttpClientMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(SharedHttpClient.class);
+
+    public static final String MAX_TOTAL_KEY = "dorset.web.http.maxTotal";
+    public static final String MAX_PER_ROUTE_KEY = "dorset.web.http.maxPerRoute";
+    public static final String CONNECT_TIMEOUT_KEY = "dorset.web.http.connectTimeout";
+    public static final String READ_TIMEOUT_KEY = "dorset.web.http.readTimeout";
+    public static final String IDLE_TIMEOUT_KEY = "dorset.web.http.idleTimeout";
+    private static final int DEFAULT_MAX_TOTAL = 200;
+    private static final int DEFAULT_MAX_PER_ROUTE = 100;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_READ_TIMEOUT = 10000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    private static final String MBEAN_NAME = "edu.jhuapl.dorset.demos:type=SharedHttpClient";
+
+    private final ApacheHttpClient client;
+    private final PoolingHttpClientConnectionManager pool;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Create the client with settings from the system properties
+     */
+    public SharedHttpClient() {
+        client = new ApacheHttpClient();
+        client.setConnectTimeout(Integer.getInteger(CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT));
+        client.setReadTimeout(Integer.getInteger(READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT));
+
+        pool = findPool();
+        if (pool != null) {
+            pool.setMaxTotal(Math.max(Integer.getInteger(MAX_TOTAL_KEY, DEFAULT_MAX_TOTAL), 1));
+            pool.setDefaultMaxPerRoute(Math.max(Integer.getInteger(MAX_PER_ROUTE_KEY, DEFAULT_MAX_PER_ROUTE), 1));
+        }
+
+        final long idleTimeout = Long.getLong(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT);
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dorset-http-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (pool != null && idleTimeout > 0) {
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pool.closeExpiredConnections();
+                    pool.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the client for agents to use
+     * 
+     * @return http client
+     */
+    public HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Publish the pool counts as a JMX MBean
+     */
+    public void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warn("Failed to register http client with JMX", e);
+        }
+    }
+
+    /**
+     * Stop closing idle connections and remove the JMX MBean
+     */
+    public void close() {
+        evictor.shutdownNow();
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to unregister http client from JMX", e);
+        }
+    }
+
+    @Override
+    public int getLeased() {
+        return pool != null ? pool.getTotalStats().getLeased() : -1;
+    }
+
+    @Override
+    public int getAvailable() {
+        return pool != null ? pool.getTotalStats().getAvailable() : -1;
+    }
+
+    @Override
+    public int getPending() {
+        return pool != null ? pool.getTotalStats().getPending() : -1;
+    }
+
+    @Override
+    public int getMaxTotal() {
+        return pool != null ? pool.getMaxTotal() : -1;
+    }
+
+    @Override
+    public int getMaxPerRoute() {
+        return pool != null ? pool.getDefaultMaxPerRoute() : -1;
+    }
+
+    /**
+     * Find the connection pool of Apache's fluent API
+     * 
+     * @return the pool or null if it cannot be reached
+     */
+    private static PoolingHttpClientConnectionManager findPool() {
+        try {
+            Field field = Executor.class.getDeclaredField("CONNMGR");
+            field.setAccessible(true);
+            return (PoolingHttpClientConnectionManager) field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Cannot reach the http connection pool, so it keeps its default size", e);
+            return null;
+        }
+    }
+}
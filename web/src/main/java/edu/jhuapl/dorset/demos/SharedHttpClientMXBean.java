@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 The Johns Hopkins University Applied Physics Laboratory LLC
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.jhuapl.dorset.demos;
+
+/**
+ * JMX view of the connection pool of the shared http client
+ * 
+ * The counts are -1 if the pool could not be reached.
+ */
+public interface SharedHttpClientMXBean {
+
+    /**
+     * Gets the number of connections in use
+     * 
+     * @return number of leased connections
+     */
+    int getLeased();
+
+    /**
+     * Gets the number of idle connections kept alive for reuse
+     * 
+     * @return number of available connections
+     */
+    int getAvailable();
+
+    /**
+     * Gets the number of requests waiting for a connection
+     * 
+     * @return number of pending requests
+     */
+    int getPending();
+
+    /**
+     * Gets the most connections the pool opens
+     * 
+     * @return maximum number of connections
+     */
+    int getMaxTotal();
+
+    /**
+     * Gets the most connections the pool opens to one host
+     * 
+     * @return maximum number of connections per route
+     */
+    int getMaxPerRoute();
+}